@@ -0,0 +1,71 @@
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+
+/**
+ * Checks that the SGD updates and deriveXAndY of the Recommender
+ * (FloatVector zero, axpyInPlace, scaleAdd and gradientStep on reused row
+ * views) do not allocate per rating.
+ *
+ * Usage: AllocationCheck [users] [items] [ratings]
+ *
+ * Trains the same random ratings twice on the calling thread
+ * (PARALLELISM 1): without SGD and with SGD_SEQUENTIAL. The difference of
+ * the bytes allocated by the thread (ThreadMXBean) is the allocation of
+ * the SGD epochs. It is reported per rating update and has to be below
+ * MAX_BYTES_PER_UPDATE; a single temporary FloatVector per rating would
+ * already cost more than 16 bytes. deriveXAndY is called once on the
+ * trained recommender and its allocation per rating has the same limit.
+ * Exits with 1 otherwise.
+ */
+public class AllocationCheck {
+	private static final double MAX_BYTES_PER_UPDATE = 1.0;
+
+	public static void main( String[] args ) {
+		int numUsers = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int numItems = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		int numRatings = args.length > 2 ? Integer.parseInt(args[2]) : 40000;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		long[] allocated = new long[2];
+		int numUpdates = 0;
+		long derived = 0;
+		int numEntries = 0;
+		for( int run=0; run<2; ++run ) {
+			// Same ratings for both runs
+			Random random = new Random(1);
+			SparseFloatMatrixBuilder ratings = new SparseFloatMatrixBuilder(numUsers, numItems, numRatings);
+			for( int i=0; i<numRatings; ++i )
+				ratings.add(random.nextInt(numUsers), random.nextInt(numItems), random.nextFloat());
+			SparseFloatMatrix matrix = ratings.build();
+			ParameterSet parameters = new ParameterSet();
+			parameters.PARALLELISM = 1;
+			parameters.SGD_SCHEDULE = run == 0 ? ParameterSet.SGD_NONE : ParameterSet.SGD_SEQUENTIAL;
+
+			long before = threads.getThreadAllocatedBytes(thread);
+			Recommender recommender = new Recommender(matrix, parameters);
+			allocated[run] = threads.getThreadAllocatedBytes(thread) - before;
+			numUpdates = recommender.ITERATRIONS * matrix.getNumEntries();
+			if( run == 1 ) {
+				numEntries = matrix.getNumEntries();
+				before = threads.getThreadAllocatedBytes(thread);
+				recommender.deriveXAndY();
+				derived = threads.getThreadAllocatedBytes(thread) - before;
+			}
+			recommender.close();
+		}
+
+		double bytesPerUpdate = (double)(allocated[1] - allocated[0]) / numUpdates;
+		double bytesPerRating = (double)derived / numEntries;
+		System.out.println("allocated bytes without SGD " + allocated[0] + ", with SGD " + allocated[1]);
+		System.out.println("SGD: " + (allocated[1] - allocated[0]) + " bytes for " + numUpdates
+				+ " rating updates (" + bytesPerUpdate + " per update)");
+		System.out.println("deriveXAndY: " + derived + " bytes for " + numEntries
+				+ " ratings (" + bytesPerRating + " per rating)");
+		boolean ok = bytesPerUpdate < MAX_BYTES_PER_UPDATE && bytesPerRating < MAX_BYTES_PER_UPDATE;
+		System.out.println(ok ? "OK" : "FAILED");
+		if( !ok )
+			System.exit(1);
+	}
+}
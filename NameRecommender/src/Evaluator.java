@@ -1,5 +1,11 @@
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 public class Evaluator {
@@ -24,10 +30,10 @@ public class Evaluator {
 	public float RMSE(Recommender _rec, SparseFloatMatrix _testMatrix) {
 		float rmse = 0;
 		int n = 0;
+		_testMatrix.compress();
 		for(int i = 0; i < _testMatrix.getNumRows(); i++) {
-			for(Iterator<SparseFloatMatrix.IndexValuePair> it = _testMatrix.getSkipIterator(i); it.hasNext(); ) {
-				SparseFloatMatrix.IndexValuePair entry = it.next();
-				 rmse += Math.pow(_rec.getPrediction(i, entry.index) - entry.value, 2);
+			for(int k = _testMatrix.getRowBegin(i); k < _testMatrix.getRowEnd(i); k++) {
+				 rmse += Math.pow(_rec.getPrediction(i, _testMatrix.getColumnIndex(k)) - _testMatrix.getValue(k), 2);
 				 n++;
 			}	
 		}
@@ -43,16 +49,53 @@ public class Evaluator {
 	 */
 	public float rmseCrossValidation(Recommender _rec, SparseFloatMatrix _testMatrix) {
 		float rmse = 0;
+		_testMatrix.compress();
 		for(int i = 0; i < _testMatrix.getNumRows(); i++) {
-			for(Iterator<SparseFloatMatrix.IndexValuePair> it = _testMatrix.getSkipIterator(i); it.hasNext(); ) {
-				SparseFloatMatrix.IndexValuePair entry = it.next();
-				 rmse += Math.pow(_rec.getPrediction(i, entry.index) - entry.value, 2);
+			for(int k = _testMatrix.getRowBegin(i); k < _testMatrix.getRowEnd(i); k++) {
+				 rmse += Math.pow(_rec.getPrediction(i, _testMatrix.getColumnIndex(k)) - _testMatrix.getValue(k), 2);
 			}	
 		}
 		
 		return rmse;		
 	}
 	
+	/**
+	 * Compares the approximate top lists of the item index (see
+	 * Recommender.buildItemIndex) with the exact ones. Prints the exact
+	 * queries per second and, for each number of probes, the recall@_k
+	 * (fraction of the exact top _k which is found) and the queries per
+	 * second. The queries run on a single thread.
+	 */
+	public void evaluateItemIndex(Recommender _rec, int[] _users, int _k, int[] _numProbes) {
+		int[][] exact = new int[_users.length][];
+		long start = System.nanoTime();
+		for(int u = 0; u < _users.length; u++)
+			exact[u] = _rec.getItemListForUser(_users[u], _k);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("exact: %.1f queries/s", _users.length / seconds));
+		
+		boolean[] inExact = new boolean[_rec.getNumItems()];
+		for(int numProbes : _numProbes) {
+			int[][] approximate = new int[_users.length][];
+			start = System.nanoTime();
+			for(int u = 0; u < _users.length; u++)
+				approximate[u] = _rec.getItemListForUser(_users[u], _k, numProbes);
+			seconds = (System.nanoTime() - start) / 1e9;
+			
+			double recall = 0;
+			for(int u = 0; u < _users.length; u++) {
+				for(int item : exact[u]) inExact[item] = true;
+				int found = 0;
+				for(int item : approximate[u])
+					if( inExact[item] ) found++;
+				for(int item : exact[u]) inExact[item] = false;
+				recall += (double)found / exact[u].length;
+			}
+			System.out.println(String.format("%d probes: recall@%d %.4f, %.1f queries/s",
+					numProbes, _k, recall / _users.length, _users.length / seconds));
+		}
+	}
+	
 	/**
 	 * Shuffles an array 
 	 * @param _array array that will be shuffled
@@ -108,64 +151,109 @@ public class Evaluator {
 	SparseFloatMatrix createRatingMatrix(InstanceBase _userData, boolean[] _filterActions, ParameterSet _param) {
 		int numItems = _userData.getNumUniqueEntries(2);
 		int numUsers = _userData.getNumUniqueEntries(0);
-		SparseFloatMatrix ratings = new SparseFloatMatrix( numUsers, numItems );
+		SparseFloatMatrixBuilder ratings = new SparseFloatMatrixBuilder( numUsers, numItems, _userData.getNumInstances() );
 				
 		// Iterate over the training data and increase the entries for the users
 		// actions.
-		int i=0;
-		for(Iterator<int[]> it = _userData.getMappedIterator(); it.hasNext(); ) {
-			int[] line = it.next();
-			if( _filterActions[i++] ) {
-				float newValue = _param.ACTION_WEIGHT[line[1]];
-				ratings.add(line[0], line[2], newValue);
+		int[] users = _userData.getColumn(0);
+		int[] actions = _userData.getColumn(1);
+		int[] items = _userData.getColumn(2);
+		for(int i = 0; i < _userData.getNumInstances(); i++) {
+			if( _filterActions[i] ) {
+				float newValue = _param.ACTION_WEIGHT[actions[i]];
+				ratings.add(users[i], items[i], newValue);
 			}
 		}
 		
-		return ratings;
+		return ratings.build();
 	}
 
 	/**
 	 * Cross validates input data. Creates recommender for each fold of train data. 
 	 * Calculates and returns cumulative RMSE error of the model.
+	 * The folds are trained concurrently (see getFoldParallelism); the
+	 * result does not depend on the number of threads. If the training of a
+	 * fold fails, the folds which did not start yet are cancelled and its
+	 * exception is thrown again.
 	 * @param _userData The database which contains all actions
 	 * @param _numberOfFolds number of folds for cross validation
 	 * @return rmse error of the model
 	 */
 	public float crossValidate(InstanceBase _userData, int _numberOfFolds) {
 		
-		ParameterSet parameters = new ParameterSet();
+		final ParameterSet parameters = new ParameterSet();
 		
 		int[] folds = kfold(_userData.getNumInstances(), _numberOfFolds);
-		float rmse = 0;
 		int numItems = _userData.getNumUniqueEntries(2);
 		int numUsers = _userData.getNumUniqueEntries(0);
+		int[] users = _userData.getColumn(0);
+		int[] actions = _userData.getColumn(1);
+		int[] items = _userData.getColumn(2);
+		float[] values = new float[_userData.getNumInstances()];
+		for(int i = 0; i < _userData.getNumInstances(); i++)
+			values[i] = parameters.ACTION_WEIGHT[actions[i]];
+		
+		// All folds are built once; each fold derives its matrices from it
+		final FoldedRatings ratings = new FoldedRatings(numUsers, numItems, _numberOfFolds, _userData.getNumInstances(), users, items, values, folds);
 		
-		for(int fold = 0; fold < _numberOfFolds; fold++) {
-			SparseFloatMatrix ratingsTest = new SparseFloatMatrix( numUsers, numItems );
-			SparseFloatMatrix ratingsTrain = new SparseFloatMatrix( numUsers, numItems );
-			// Iterate over the training data and increase the entries for the users
-			// actions.
-			int i=0;
-			for(Iterator<int[]> it = _userData.getMappedIterator(); it.hasNext(); ) {
-				int[] line = it.next();
-				if( folds[i++] == fold) {
-					float newValue = parameters.ACTION_WEIGHT[line[1]];
-					newValue += ratingsTest.get(line[0], line[2]);
-					ratingsTest.set(line[0], line[2], newValue);
-				}
-				else{
-					float newValue = parameters.ACTION_WEIGHT[line[1]];
-					newValue += ratingsTrain.get(line[0], line[2]);
-					ratingsTrain.set(line[0], line[2], newValue);
-				}
+		// Train the folds at the same time. The threads are shared between
+		// the folds and the training of each fold.
+		int numThreads = getFoldParallelism(ratings, numUsers, numItems, parameters);
+		parameters.PARALLELISM = Math.max(1, parameters.PARALLELISM / numThreads);
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		List<Future<Float>> errors = new ArrayList<Future<Float>>();
+		try {
+			for(int fold = 0; fold < _numberOfFolds; fold++) {
+				final int testFold = fold;
+				errors.add(pool.submit(new Callable<Float>() {
+					public Float call() {
+						Recommender recommender = new Recommender(ratings.getTrainingMatrix(testFold), parameters);
+						try {
+							return rmseCrossValidation(recommender, ratings.getTestMatrix(testFold));
+						} finally {
+							recommender.close();
+						}
+					}
+				}));
 			}
 			
-			Recommender recommender = new Recommender(ratingsTrain, parameters);
-			rmse += rmseCrossValidation(recommender, ratingsTest);
+			// Add the errors in fold order (independent of the finishing order)
+			float rmse = 0;
+			for(Future<Float> error : errors)
+				rmse += error.get();
+			return (float) Math.sqrt(rmse/_userData.getNumInstances());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Cross validation was interrupted", e);
+		} catch (ExecutionException e) {
+			// The training of a fold failed
+			Throwable cause = e.getCause();
+			if( cause instanceof RuntimeException ) throw (RuntimeException)cause;
+			if( cause instanceof Error ) throw (Error)cause;
+			throw new IllegalStateException(cause);
+		} finally {
+			// Folds which did not start yet are not trained after a failure
+			for(Future<Float> error : errors)
+				error.cancel(true);
+			pool.shutdown();
 		}
-		
-		
-		return (float) Math.sqrt(rmse/_userData.getNumInstances());
+	}
+	
+	/**
+	 * @return The number of folds which are trained at the same time: at
+	 * 	most PARALLELISM and only as many as fit into half of the free heap.
+	 * 	A fold needs its training and test matrix with the column index, the
+	 * 	residuals of the training and the factor matrices.
+	 */
+	private static int getFoldParallelism(FoldedRatings _ratings, int _numUsers, int _numItems, ParameterSet _param) {
+		long numEntries = _ratings.getNumEntries();	// Upper bound for one fold
+		long bytesPerFold = numEntries * 4 * (2 + 2 + 2)
+				+ 4L * (_numUsers + _numItems + 2)
+				+ 4L * _param.MAX_RANK * (_numUsers + 3L * _numItems);
+		Runtime runtime = Runtime.getRuntime();
+		long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		long byMemory = free / (2 * bytesPerFold);
+		return (int) Math.max(1, Math.min(Math.min(_param.PARALLELISM, _ratings.getNumFolds()), byMemory));
 	}
 	
 	/**
@@ -0,0 +1,264 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * A dense matrix of latent factors: one row of length rank per user or item.
+ *
+ * All rows are stored row by row in a single float array, so each row is a
+ * contiguous range. Rows can be accessed as FloatVector views (getRow). The training touches only one factor (column)
+ * of all rows at a time; getColumn/setColumn copy such a column to/from a
+ * contiguous array.
+ *
+ * A matrix created by map reads its rows from a read-only mapping of a
+ * model file instead of an array (dot, get and copyRow work on both).
+ *
+ * replaceRow creates a copy with one row replaced (copy on write). Such a
+ * row is stored in its own array. Mapped matrices and copies are for
+ * reading only: getData, getRow, set, setColumn and fillColumn are for
+ * matrices in an array without replaced rows.
+ */
+public class FactorMatrix {
+	private float m_Data[];
+	private int m_NumRows;
+	private int m_Rank;
+	
+	// Rows per page of replaced rows (see replaceRow)
+	private static final int PAGE_SHIFT = 10;
+	private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	
+	// The rows replaced by replaceRow (null if there are none). Row r is
+	// m_Pages[r >> PAGE_SHIFT][r % PAGE_SIZE] if that page and row exist,
+	// otherwise it is stored in m_Data. Pages and rows are shared with the
+	// matrices created by replaceRow.
+	private float[][][] m_Pages;
+	
+	// The rows of a mapped matrix (see map) instead of m_Data. Row r is at
+	// (r % 2^m_SegmentShift) * rank in m_Segments[r >> m_SegmentShift].
+	private ByteBuffer[] m_Segments;
+	private int m_SegmentShift;
+
+	FactorMatrix( int _numRows, int _rank ) {
+		m_Data = new float[_numRows * _rank];
+		m_NumRows = _numRows;
+		m_Rank = _rank;
+	}
+
+	/**
+	 * Maps a matrix which is stored in a file (row by row, big endian
+	 * floats) read-only. The rows are not copied: they are read from the
+	 * mapping, so this takes no time for the reading and all processes
+	 * which map the same file share the memory of the rows (page cache).
+	 * The file must not be changed while the matrix is used.
+	 * @param _position The position of the first row in the file. The file
+	 * 	has to be long enough.
+	 */
+	static FactorMatrix map( FileChannel _channel, long _position, int _numRows, int _rank ) throws IOException {
+		// A mapping is limited to 2 GB, a segment has 2^shift rows
+		long rowSize = 4L * _rank;
+		int shift = 30;
+		while( shift > 0 && (rowSize << shift) > Integer.MAX_VALUE )
+			--shift;
+		ByteBuffer[] segments = new ByteBuffer[((_numRows - 1) >> shift) + 1];
+		for( int s=0; s<segments.length; ++s ) {
+			long numRows = Math.min(1L << shift, _numRows - ((long)s << shift));
+			segments[s] = _channel.map(FileChannel.MapMode.READ_ONLY, _position + rowSize * ((long)s << shift),
+					rowSize * numRows);
+		}
+		return new FactorMatrix( _numRows, _rank, segments, shift );
+	}
+
+	private FactorMatrix( int _numRows, int _rank, ByteBuffer[] _segments, int _segmentShift ) {
+		m_NumRows = _numRows;
+		m_Rank = _rank;
+		m_Segments = _segments;
+		m_SegmentShift = _segmentShift;
+	}
+
+	public int getNumRows() {
+		return m_NumRows;
+	}
+
+	public int getRank() {
+		return m_Rank;
+	}
+
+	/**
+	 * The underlying array of a matrix without replaced rows. Row r is
+	 * stored at [r*getRank(), (r+1)*getRank()).
+	 */
+	float[] getData() {
+		if( m_Pages != null ) throw new IllegalStateException("The matrix has replaced rows");
+		if( m_Data == null ) throw new IllegalStateException("The matrix is mapped");
+		return m_Data;
+	}
+
+	/**
+	 * @return The array which stores a row at [getOffset(_row),
+	 * 	getOffset(_row)+getRank()) or null if the row is in getSegment(_row).
+	 */
+	private float[] getArray( int _row ) {
+		float[] row = getReplacedRow(_row);
+		return row != null ? row : m_Data;
+	}
+
+	/**
+	 * @return The mapping which stores a row of a mapped matrix as floats
+	 * 	[getOffset(_row), getOffset(_row)+getRank()) (big endian).
+	 */
+	private ByteBuffer getSegment( int _row ) {
+		return m_Segments[_row >> m_SegmentShift];
+	}
+
+	private int getOffset( int _row ) {
+		if( getReplacedRow(_row) != null ) return 0;
+		if( m_Data == null ) return (_row & ((1 << m_SegmentShift) - 1)) * m_Rank;
+		return _row * m_Rank;
+	}
+
+	/**
+	 * @return A row replaced by replaceRow or null if it is stored in m_Data.
+	 */
+	private float[] getReplacedRow( int _row ) {
+		if( m_Pages == null ) return null;
+		float[][] page = m_Pages[_row >> PAGE_SHIFT];
+		return page == null ? null : page[_row & (PAGE_SIZE-1)];
+	}
+
+	/**
+	 * Creates a copy where one row is replaced by _values (used without a
+	 * copy). _row == getNumRows() appends a new row. This matrix is not
+	 * changed.
+	 *
+	 * The copy shares the rows (array or mapping) and the rows replaced
+	 * before with this matrix
+	 * (copy on write). Only the page index and the page of the row are
+	 * copied, so the costs do not depend on the size of the matrix. The
+	 * rows of both matrices must not be changed afterwards.
+	 */
+	public FactorMatrix replaceRow( int _row, float[] _values ) {
+		if( _row < 0 || _row > m_NumRows || _values.length != m_Rank ) throw new IllegalArgumentException();
+		FactorMatrix result = new FactorMatrix( Math.max(m_NumRows, _row+1), m_Rank, m_Data, m_Pages );
+		result.m_Segments = m_Segments;
+		result.m_SegmentShift = m_SegmentShift;
+		int page = _row >> PAGE_SHIFT;
+		float[][] rows = result.m_Pages[page];
+		result.m_Pages[page] = rows == null ? new float[PAGE_SIZE][] : rows.clone();
+		result.m_Pages[page][_row & (PAGE_SIZE-1)] = _values;
+		return result;
+	}
+
+	/**
+	 * A matrix which shares _data and the pages of _pages (see replaceRow).
+	 */
+	private FactorMatrix( int _numRows, int _rank, float[] _data, float[][][] _pages ) {
+		m_Data = _data;
+		m_NumRows = _numRows;
+		m_Rank = _rank;
+		m_Pages = new float[((_numRows - 1) >> PAGE_SHIFT) + 1][][];
+		if( _pages != null )
+			System.arraycopy(_pages, 0, m_Pages, 0, _pages.length);
+	}
+
+	/**
+	 * Copies a row to _dst[_offset, _offset+getRank()).
+	 */
+	public void copyRow( int _row, float[] _dst, int _offset ) {
+		float[] data = getArray(_row);
+		if( data != null ) {
+			System.arraycopy(data, getOffset(_row), _dst, _offset, m_Rank);
+			return;
+		}
+		ByteBuffer segment = getSegment(_row);
+		int offset = getOffset(_row);
+		for( int f=0; f<m_Rank; ++f )
+			_dst[_offset+f] = segment.getFloat(4 * (offset+f));
+	}
+
+	/**
+	 * Fast get without a check of the index
+	 */
+	public float get( int _row, int _factor ) {
+		float[] data = getArray(_row);
+		if( data != null )
+			return data[getOffset(_row) + _factor];
+		return getSegment(_row).getFloat(4 * (getOffset(_row) + _factor));
+	}
+
+	/**
+	 * Fast set without a check of the index
+	 */
+	public void set( int _row, int _factor, float _value ) {
+		m_Data[_row * m_Rank + _factor] = _value;
+	}
+
+	/**
+	 * @return A new view onto a row. Changing the vector changes the matrix.
+	 */
+	public FloatVector getRow( int _row ) {
+		if( m_Data == null || m_Pages != null ) throw new IllegalStateException("The matrix is mapped or has replaced rows");
+		return new FloatVector( getArray(_row), getOffset(_row), m_Rank );
+	}
+
+	/**
+	 * Moves an existing view (created by getRow) to another row. This does
+	 * not allocate anything.
+	 * @return _view
+	 */
+	public FloatVector getRow( int _row, FloatVector _view ) {
+		if( _view.length() != m_Rank ) throw new IllegalArgumentException();
+		if( m_Data == null || m_Pages != null ) throw new IllegalStateException("The matrix is mapped or has replaced rows");
+		_view.bind( getArray(_row), getOffset(_row) );
+		return _view;
+	}
+
+	/**
+	 * Copies the _factor-th component of all rows into _dst.
+	 */
+	public void getColumn( int _factor, float[] _dst ) {
+		for( int r=0, k=_factor; r<m_NumRows; ++r, k+=m_Rank )
+			_dst[r] = m_Data[k];
+	}
+
+	/**
+	 * Sets the _factor-th component of all rows from _src.
+	 */
+	public void setColumn( int _factor, float[] _src ) {
+		for( int r=0, k=_factor; r<m_NumRows; ++r, k+=m_Rank )
+			m_Data[k] = _src[r];
+	}
+
+	/**
+	 * Sets the _factor-th component of all rows to the same value.
+	 */
+	public void fillColumn( int _factor, float _value ) {
+		for( int r=0, k=_factor; r<m_NumRows; ++r, k+=m_Rank )
+			m_Data[k] = _value;
+	}
+
+	/**
+	 * Dot product of a row of this matrix and a row of _other.
+	 */
+	public float dot( int _row, FactorMatrix _other, int _otherRow ) {
+		if( m_Rank != _other.m_Rank ) throw new IllegalArgumentException();
+		float[] a = getArray(_row);
+		float[] b = _other.getArray(_otherRow);
+		int aOffset = getOffset(_row);
+		int bOffset = _other.getOffset(_otherRow);
+		if( a != null && b != null )
+			return FloatVector.dot( a, aOffset, b, bOffset, m_Rank );
+		// At least one of the rows is mapped
+		if( a != null )
+			return FloatVector.KERNELS.dot( _other.getSegment(_otherRow), bOffset, a, aOffset, m_Rank );
+		if( b != null )
+			return FloatVector.KERNELS.dot( getSegment(_row), aOffset, b, bOffset, m_Rank );
+		return FloatVector.KERNELS.dot( getSegment(_row), aOffset, _other.getSegment(_otherRow), bOffset, m_Rank );
+	}
+
+	public String toString( int _row ) {
+		float[] row = new float[m_Rank];
+		copyRow(_row, row, 0);
+		return new FloatVector(row, 0, m_Rank).toString();
+	}
+}
@@ -0,0 +1,108 @@
+import java.nio.ByteBuffer;
+
+
+/**
+ * The loops behind the FloatVector and FactorMatrix operations. All kernels
+ * work on ranges of float arrays so they can be used for single vectors as
+ * well as for rows of a FactorMatrix. dot also works on the rows of a
+ * mapped FactorMatrix: floats in a big endian ByteBuffer (offsets count
+ * floats, not bytes).
+ *
+ * create() returns the vectorized implementation (SimdFloatKernels) if the
+ * JDK Vector API is available (run with --add-modules jdk.incubator.vector)
+ * and the plain loops otherwise. The vectorized dot product sums in a
+ * different order, so its results differ from the scalar ones in the last
+ * bits. Start with -DFloatKernels.simd=false to force the scalar version.
+ */
+public abstract class FloatKernels {
+
+	/** @return sum a[aOffset+i] * b[bOffset+i] */
+	public abstract float dot( float[] _a, int _aOffset, float[] _b, int _bOffset, int _length );
+
+	/** @return sum a[aOffset+i] * b[bOffset+i] with a mapped */
+	public abstract float dot( ByteBuffer _a, int _aOffset, float[] _b, int _bOffset, int _length );
+
+	/** @return sum a[aOffset+i] * b[bOffset+i] with a and b mapped */
+	public abstract float dot( ByteBuffer _a, int _aOffset, ByteBuffer _b, int _bOffset, int _length );
+
+	/** y += x */
+	public abstract void add( float[] _x, int _xOffset, float[] _y, int _yOffset, int _length );
+
+	/** y -= x */
+	public abstract void sub( float[] _x, int _xOffset, float[] _y, int _yOffset, int _length );
+
+	/** y *= s */
+	public abstract void scale( float _s, float[] _y, int _yOffset, int _length );
+
+	/** y += s * x */
+	public abstract void axpy( float _s, float[] _x, int _xOffset, float[] _y, int _yOffset, int _length );
+
+	/** dst = a * s + b */
+	public abstract void mad( float _s, float[] _a, int _aOffset, float[] _b, int _bOffset, float[] _dst, int _dstOffset, int _length );
+
+	/**
+	 * Chooses the implementation (see class comment).
+	 */
+	static FloatKernels create() {
+		if( !"false".equalsIgnoreCase(System.getProperty("FloatKernels.simd")) ) {
+			try {
+				return (FloatKernels)Class.forName("SimdFloatKernels").getDeclaredConstructor().newInstance();
+			} catch( ReflectiveOperationException | LinkageError e ) {
+				// Class not compiled (ClassNotFoundException) or module
+				// jdk.incubator.vector missing (NoClassDefFoundError)
+			}
+		}
+		return new Scalar();
+	}
+
+	/**
+	 * The plain loops which were used before the kernels were introduced.
+	 */
+	static class Scalar extends FloatKernels {
+		public float dot( float[] _a, int _aOffset, float[] _b, int _bOffset, int _length ) {
+			float result = 0.0f;
+			for( int i=0; i<_length; ++i )
+				result += _a[_aOffset+i] * _b[_bOffset+i];
+			return result;
+		}
+
+		public float dot( ByteBuffer _a, int _aOffset, float[] _b, int _bOffset, int _length ) {
+			float result = 0.0f;
+			for( int i=0; i<_length; ++i )
+				result += _a.getFloat(4 * (_aOffset+i)) * _b[_bOffset+i];
+			return result;
+		}
+
+		public float dot( ByteBuffer _a, int _aOffset, ByteBuffer _b, int _bOffset, int _length ) {
+			float result = 0.0f;
+			for( int i=0; i<_length; ++i )
+				result += _a.getFloat(4 * (_aOffset+i)) * _b.getFloat(4 * (_bOffset+i));
+			return result;
+		}
+
+		public void add( float[] _x, int _xOffset, float[] _y, int _yOffset, int _length ) {
+			for( int i=0; i<_length; ++i )
+				_y[_yOffset+i] += _x[_xOffset+i];
+		}
+
+		public void sub( float[] _x, int _xOffset, float[] _y, int _yOffset, int _length ) {
+			for( int i=0; i<_length; ++i )
+				_y[_yOffset+i] -= _x[_xOffset+i];
+		}
+
+		public void scale( float _s, float[] _y, int _yOffset, int _length ) {
+			for( int i=0; i<_length; ++i )
+				_y[_yOffset+i] *= _s;
+		}
+
+		public void axpy( float _s, float[] _x, int _xOffset, float[] _y, int _yOffset, int _length ) {
+			for( int i=0; i<_length; ++i )
+				_y[_yOffset+i] += _s * _x[_xOffset+i];
+		}
+
+		public void mad( float _s, float[] _a, int _aOffset, float[] _b, int _bOffset, float[] _dst, int _dstOffset, int _length ) {
+			for( int i=0; i<_length; ++i )
+				_dst[_dstOffset+i] = _a[_aOffset+i]*_s + _b[_bOffset+i];
+		}
+	}
+}
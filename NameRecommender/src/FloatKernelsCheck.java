@@ -0,0 +1,117 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Compares the kernels of FloatKernels.create() (SimdFloatKernels) with the
+ * scalar ones on random ranges.
+ *
+ * Usage: FloatKernelsCheck [number of ranges]
+ *
+ * Run it with --add-modules jdk.incubator.vector and SimdFloatKernels on the
+ * class path. add, sub and scale have to be identical, as well as the dot
+ * of a mapped row (ByteBuffer) and the dot of the same values in an array
+ * (for both implementations). dot, axpy and mad
+ * may differ by rounding (fused multiply-add, different order of the sum):
+ * the deviation has to be below TOLERANCE relative to the sum of the
+ * absolute values of the terms. Exits with 1 if a kernel deviates or if
+ * only the scalar kernels are available.
+ */
+public class FloatKernelsCheck {
+	private static final double TOLERANCE = 1e-6;
+
+	public static void main( String[] args ) {
+		int numRanges = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		FloatKernels scalar = new FloatKernels.Scalar();
+		FloatKernels kernels = FloatKernels.create();
+		if( kernels instanceof FloatKernels.Scalar ) {
+			System.out.println("SimdFloatKernels is not available, nothing to compare");
+			System.exit(1);
+		}
+
+		Random random = new Random(1);
+		double maxDot = 0, maxAxpy = 0, maxMad = 0;
+		boolean identical = true;
+		for( int t=0; t<numRanges; ++t ) {
+			// Lengths around the vector width, so the tail loops are covered
+			int length = 1 + random.nextInt(100);
+			int offset = random.nextInt(8);
+			float s = random.nextFloat() * 2 - 1;
+			float[] x = randomArray(random, offset + length);
+			float[] y = randomArray(random, offset + length);
+
+			double magnitude = 0;
+			for( int i=0; i<length; ++i )
+				magnitude += Math.abs(x[offset+i] * y[offset+i]);
+			double deviation = Math.abs(scalar.dot(x, offset, y, offset, length) - kernels.dot(x, offset, y, offset, length));
+			maxDot = Math.max(maxDot, deviation / Math.max(magnitude, Float.MIN_NORMAL));
+			ByteBuffer xBuffer = toBuffer(x), yBuffer = toBuffer(y);
+			for( FloatKernels k : new FloatKernels[] { scalar, kernels } ) {
+				float dot = k.dot(x, offset, y, offset, length);
+				identical &= k.dot(xBuffer, offset, y, offset, length) == dot;
+				identical &= k.dot(xBuffer, offset, yBuffer, offset, length) == dot;
+			}
+
+			float[] y1 = y.clone(), y2 = y.clone();
+			scalar.axpy(s, x, offset, y1, offset, length);
+			kernels.axpy(s, x, offset, y2, offset, length);
+			maxAxpy = Math.max(maxAxpy, maxDeviation(s, x, y, y1, y2));
+
+			float[] dst1 = new float[y.length], dst2 = new float[y.length];
+			scalar.mad(s, x, offset, y, offset, dst1, offset, length);
+			kernels.mad(s, x, offset, y, offset, dst2, offset, length);
+			maxMad = Math.max(maxMad, maxDeviation(s, x, y, dst1, dst2));
+
+			y1 = y.clone(); y2 = y.clone();
+			scalar.add(x, offset, y1, offset, length);
+			kernels.add(x, offset, y2, offset, length);
+			identical &= Arrays.equals(y1, y2);
+			y1 = y.clone(); y2 = y.clone();
+			scalar.sub(x, offset, y1, offset, length);
+			kernels.sub(x, offset, y2, offset, length);
+			identical &= Arrays.equals(y1, y2);
+			y1 = y.clone(); y2 = y.clone();
+			scalar.scale(s, y1, offset, length);
+			kernels.scale(s, y2, offset, length);
+			identical &= Arrays.equals(y1, y2);
+		}
+
+		System.out.println("add, sub, scale, dot of mapped rows identical: " + identical);
+		System.out.println("max relative deviation dot " + maxDot + ", axpy " + maxAxpy + ", mad " + maxMad);
+		boolean ok = identical && maxDot <= TOLERANCE && maxAxpy <= TOLERANCE && maxMad <= TOLERANCE;
+		System.out.println(ok ? "OK" : "FAILED");
+		if( !ok )
+			System.exit(1);
+	}
+
+	private static float[] randomArray( Random _random, int _length ) {
+		float[] a = new float[_length];
+		for( int i=0; i<_length; ++i )
+			a[i] = _random.nextFloat() * 2 - 1;
+		return a;
+	}
+
+	/**
+	 * @return _values as big endian floats like the rows of a mapped
+	 * 	FactorMatrix.
+	 */
+	private static ByteBuffer toBuffer( float[] _values ) {
+		ByteBuffer buffer = ByteBuffer.allocate(4 * _values.length);
+		buffer.asFloatBuffer().put(_values);
+		return buffer;
+	}
+
+	/**
+	 * @return The largest deviation of two results of s * x + y relative to
+	 * 	|s * x| + |y|.
+	 */
+	private static double maxDeviation( float _s, float[] _x, float[] _y, float[] _result1, float[] _result2 ) {
+		double max = 0;
+		for( int i=0; i<_result1.length; ++i ) {
+			double magnitude = Math.abs(_s * _x[i]) + Math.abs(_y[i]);
+			max = Math.max(max, Math.abs(_result1[i] - _result2[i]) / Math.max(magnitude, Float.MIN_NORMAL));
+		}
+		return max;
+	}
+}
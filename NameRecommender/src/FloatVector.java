@@ -9,16 +9,42 @@
  *		* vector + vector where both have to be of the same size.  
  *		* vector * scalar
  * 
+ * A vector can also be a view onto a part of a larger array (e.g. one row of
+ * a FactorMatrix). All operations on the view change the underlying array.
  */
 public class FloatVector {
+	/** The loops of all vector operations (scalar or vectorized) */
+	static final FloatKernels KERNELS = FloatKernels.create();
+	
 	private float m_Rows[];
+	private int m_Offset;	// Index of the first component in m_Rows
+	private int m_Length;
 	
 	FloatVector(int _length) {
 		m_Rows = new float[_length];
+		m_Length = _length;
+	}
+	
+	/**
+	 * Creates a view onto _data[_offset, _offset+_length). No copy is made.
+	 */
+	FloatVector(float[] _data, int _offset, int _length) {
+		m_Rows = _data;
+		m_Offset = _offset;
+		m_Length = _length;
+	}
+	
+	/**
+	 * Moves a view to another position without allocating a new vector.
+	 * The length stays the same.
+	 */
+	void bind(float[] _data, int _offset) {
+		m_Rows = _data;
+		m_Offset = _offset;
 	}
 	
 	public int length() {
-		return m_Rows.length;
+		return m_Length;
 	}
 	
 	/**
@@ -27,7 +53,7 @@ public class FloatVector {
 	 * @return The value of the _row-th vector component.
 	 */
 	public float get( int _row ) {
-		return m_Rows[_row];
+		return m_Rows[m_Offset+_row];
 	}
 	
 	/**
@@ -36,7 +62,7 @@ public class FloatVector {
 	 * @param _value The value to be set at the specified position.
 	 */
 	public void set( int _row, float _value ) {
-		m_Rows[_row] = _value;
+		m_Rows[m_Offset+_row] = _value;
 	}
 	
 	
@@ -49,15 +75,13 @@ public class FloatVector {
 	public void add( FloatVector _b ) {
 		if(_b.length() != length()) throw new IllegalArgumentException();
 		
-		for( int i=0; i<length(); ++i )
-			m_Rows[i] += _b.get(i);
+		KERNELS.add( _b.m_Rows, _b.m_Offset, m_Rows, m_Offset, m_Length );
 	}
 	
 	public void sub( FloatVector _b ) {
 		if(_b.length() != length()) throw new IllegalArgumentException();
 		
-		for( int i=0; i<length(); ++i )
-			m_Rows[i] -= _b.get(i);
+		KERNELS.sub( _b.m_Rows, _b.m_Offset, m_Rows, m_Offset, m_Length );
 	}
 
 	/**
@@ -71,8 +95,8 @@ public class FloatVector {
 		if(_a.length() != _b.length()) throw new IllegalArgumentException();
 		
 		FloatVector result = new FloatVector(_a.length());
-		for( int i=0; i<_a.length(); ++i )
-			result.m_Rows[i] = _a.m_Rows[i] + _b.m_Rows[i];
+		// a * 1 + b is exactly a + b
+		KERNELS.mad( 1.0f, _a.m_Rows, _a.m_Offset, _b.m_Rows, _b.m_Offset, result.m_Rows, 0, _a.length() );
 		return result;
 	}
 
@@ -81,8 +105,8 @@ public class FloatVector {
 		if(_a.length() != _b.length()) throw new IllegalArgumentException();
 		
 		FloatVector result = new FloatVector(_a.length());
-		for( int i=0; i<_a.length(); ++i )
-			result.m_Rows[i] = _a.m_Rows[i] - _b.m_Rows[i];
+		// b * -1 + a is exactly a - b
+		KERNELS.mad( -1.0f, _b.m_Rows, _b.m_Offset, _a.m_Rows, _a.m_Offset, result.m_Rows, 0, _a.length() );
 		return result;
 	}
 
@@ -92,14 +116,13 @@ public class FloatVector {
 	 * @param _s The scalar value.
 	 */
 	public void mul( float _s ) {
-		for( int i=0; i<length(); ++i )
-			m_Rows[i] *= _s;
+		KERNELS.scale( _s, m_Rows, m_Offset, m_Length );
 	}
 	
 	static public FloatVector mul( float _s, FloatVector _v ) {
 		FloatVector result = new FloatVector(_v.length());
-		for( int i=0; i<_v.length(); ++i )
-			result.m_Rows[i] = _v.m_Rows[i]*_s;
+		System.arraycopy( _v.m_Rows, _v.m_Offset, result.m_Rows, 0, _v.length() );
+		KERNELS.scale( _s, result.m_Rows, 0, _v.length() );
 		return result;
 	}
 	
@@ -117,27 +140,74 @@ public class FloatVector {
 		if(_a.length() != _b.length()) throw new IllegalArgumentException();
 		
 		FloatVector result = new FloatVector(_a.length());
-		for( int i=0; i<_a.length(); ++i )
-			result.m_Rows[i] = _a.m_Rows[i]*_s + _b.m_Rows[i];
+		KERNELS.mad( _s, _a.m_Rows, _a.m_Offset, _b.m_Rows, _b.m_Offset, result.m_Rows, 0, _a.length() );
 		return result;
 	}
 	
+	/**
+	 * Sets all components to 0.
+	 */
+	public void zero() {
+		java.util.Arrays.fill( m_Rows, m_Offset, m_Offset+m_Length, 0.0f );
+	}
+	
+	/**
+	 * In place version of mad: this += s * x. Nothing is allocated.
+	 * @param _s The scalar factor of _x.
+	 * @param _x The other vector
+	 */
+	public void axpyInPlace( float _s, FloatVector _x ) {
+		if(_x.length() != length()) throw new IllegalArgumentException();
+		
+		KERNELS.axpy( _s, _x.m_Rows, _x.m_Offset, m_Rows, m_Offset, m_Length );
+	}
+	
+	/**
+	 * Overwrites this vector with a linear combination: this = a * x + b * y.
+	 * Nothing is allocated and this vector may be x or y itself.
+	 */
+	public void scaleAdd( float _a, FloatVector _x, float _b, FloatVector _y ) {
+		if(_x.length() != length() || _y.length() != length()) throw new IllegalArgumentException();
+		
+		for( int i=0; i<m_Length; ++i )
+			m_Rows[m_Offset+i] = _a * _x.m_Rows[_x.m_Offset+i] + _b * _y.m_Rows[_y.m_Offset+i];
+	}
+	
+	/**
+	 * A regularized gradient step in one loop without a temporary vector:
+	 * this += step * gradient + decay * this.
+	 * 
+	 * For an SGD update v += gamma * (e * g - lambda * v) use
+	 * step = gamma * e and decay = -gamma * lambda.
+	 */
+	public void gradientStep( float _step, FloatVector _gradient, float _decay ) {
+		if(_gradient.length() != length()) throw new IllegalArgumentException();
+		
+		for( int i=0; i<m_Length; ++i ) {
+			float v = m_Rows[m_Offset+i];
+			m_Rows[m_Offset+i] = v + (_gradient.m_Rows[_gradient.m_Offset+i] * _step + v * _decay);
+		}
+	}
+	
 	
 	public float dot( FloatVector _b ) {
 		if(length() != _b.length()) throw new IllegalArgumentException();
 		
-		float result = 0.0f;
-		int len = length();
-		for( int i=0; i<len; ++i )
-			result += m_Rows[i] * _b.m_Rows[i];
-		return result;
+		return dot( m_Rows, m_Offset, _b.m_Rows, _b.m_Offset, length() );
+	}
+	
+	/**
+	 * Dot product of two arbitrary array ranges of the same length.
+	 */
+	static float dot( float[] _a, int _aOffset, float[] _b, int _bOffset, int _length ) {
+		return KERNELS.dot( _a, _aOffset, _b, _bOffset, _length );
 	}
 	
 	@Override
 	public String toString() {
 		String res = "[";
-		for( int i=0; i<m_Rows.length; ++i)
-			res += m_Rows[i] + " ";
+		for( int i=0; i<m_Length; ++i)
+			res += m_Rows[m_Offset+i] + " ";
 		return res + "]  ";
 	}
 
@@ -0,0 +1,88 @@
+import java.util.Arrays;
+
+
+/**
+ * The ratings of all cross validation folds in one CSR store.
+ *
+ * Each action belongs to a fold. The store has one entry per (user, item,
+ * fold) with the summed weights of the fold's actions; the entries of a row
+ * are sorted by item and then by fold. It is built once; the training
+ * matrix (all folds but one) and the test matrix (one fold) of a fold are
+ * derived with a single linear pass over the store, without sorting.
+ */
+public class FoldedRatings {
+	private int m_NumFolds;
+	private int m_NumItems;
+
+	// Column c of an entry is item * m_NumFolds + fold
+	private SparseFloatMatrix m_Entries;
+
+	/**
+	 * @param _users, _items, _values, _folds The actions [0, _numActions).
+	 * 	Actions with the same user, item and fold are summed in their order.
+	 */
+	FoldedRatings( int _numUsers, int _numItems, int _numFolds, int _numActions, int[] _users, int[] _items, float[] _values, int[] _folds ) {
+		if( (long)_numItems * _numFolds > Integer.MAX_VALUE ) throw new IllegalArgumentException("Too many items");
+		m_NumFolds = _numFolds;
+		m_NumItems = _numItems;
+		SparseFloatMatrixBuilder entries = new SparseFloatMatrixBuilder( _numUsers, _numItems * _numFolds, _numActions );
+		for( int i=0; i<_numActions; ++i )
+			entries.add( _users[i], _items[i] * _numFolds + _folds[i], _values[i] );
+		m_Entries = entries.build();
+	}
+
+	public int getNumFolds() {
+		return m_NumFolds;
+	}
+
+	/**
+	 * @return The number of (user, item, fold) entries.
+	 */
+	public int getNumEntries() {
+		return m_Entries.getNumEntries();
+	}
+
+	/**
+	 * @return A new matrix with the sums of all folds except _fold.
+	 */
+	public SparseFloatMatrix getTrainingMatrix( int _fold ) {
+		return select( _fold, false );
+	}
+
+	/**
+	 * @return A new matrix with the values of _fold only.
+	 */
+	public SparseFloatMatrix getTestMatrix( int _fold ) {
+		return select( _fold, true );
+	}
+
+	/**
+	 * Copies the entries of _fold (_inFold) or of all other folds (!_inFold)
+	 * and sums the entries of the same item.
+	 */
+	private SparseFloatMatrix select( int _fold, boolean _inFold ) {
+		int numUsers = m_Entries.getNumRows();
+		int[] rowPtr = new int[numUsers+1];
+		int[] colIdx = new int[m_Entries.getNumEntries()];
+		float[] values = new float[m_Entries.getNumEntries()];
+		int n = 0;
+		for( int u=0; u<numUsers; ++u ) {
+			rowPtr[u] = n;
+			for( int k=m_Entries.getRowBegin(u); k<m_Entries.getRowEnd(u); ++k ) {
+				int column = m_Entries.getColumnIndex(k);
+				if( (column % m_NumFolds == _fold) != _inFold ) continue;
+				int item = column / m_NumFolds;
+				if( n > rowPtr[u] && colIdx[n-1] == item )
+					values[n-1] += m_Entries.getValue(k);
+				else {
+					colIdx[n] = item;
+					values[n] = m_Entries.getValue(k);
+					++n;
+				}
+			}
+		}
+		rowPtr[numUsers] = n;
+		return new SparseFloatMatrix( numUsers, m_NumItems, rowPtr,
+				Arrays.copyOf(colIdx, n), Arrays.copyOf(values, n) );
+	}
+}
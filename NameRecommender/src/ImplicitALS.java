@@ -0,0 +1,200 @@
+import java.util.Random;
+
+
+/**
+ * Trains the user factors P and the item factors Q for implicit feedback with
+ * alternating least squares (Hu, Koren, Volinsky: "Collaborative Filtering
+ * for Implicit Feedback Datasets", 2008).
+ *
+ * Every known weight r_ui is a preference of 1 with the confidence
+ * c_ui = 1 + alpha * r_ui; all other pairs are a preference of 0 with the
+ * confidence 1. The loss is
+ *   sum c_ui (p_ui - P_u dot Q_i) + lambda (sum |P_u| + sum |Q_i|)
+ * A sweep solves for all users with Q fixed and then for all items with P
+ * fixed. The unknown pairs only contribute the Gramian Q^T Q (or P^T P),
+ * which is computed once per half sweep. So a user costs
+ * O(n_u * rank + rank) and a sweep is linear in the number of weights.
+ *
+ * The rank x rank systems are symmetric positive definite and solved with
+ * a Cholesky decomposition in double precision. The rows are solved in
+ * parallel; each row is independent and the Gramian is summed in fixed
+ * blocks, so the result does not depend on the number of threads.
+ */
+public class ImplicitALS {
+	// Maximum number of partial Gramians (limits the memory of gramian())
+	private static final int GRAMIAN_BLOCKS = 64;
+
+	private SparseFloatMatrix m_Weights;
+	private int m_Rank;
+	private float m_Alpha;
+	private float m_Lambda;
+	private ParallelLoop m_Loop;
+
+	/**
+	 * @param _weights The known weights (compressed). train() builds the
+	 * 	column index if it is missing.
+	 * @param _alpha Scales the weights to confidences.
+	 * @param _lambda Regularization.
+	 */
+	ImplicitALS( SparseFloatMatrix _weights, int _rank, float _alpha, float _lambda, ParallelLoop _loop ) {
+		if( !_weights.isCompressed() ) throw new IllegalArgumentException();
+		m_Weights = _weights;
+		m_Rank = _rank;
+		m_Alpha = _alpha;
+		m_Lambda = _lambda;
+		m_Loop = _loop;
+	}
+
+	/**
+	 * Initializes Q with small random values and runs _iterations sweeps.
+	 * @param _P The user factors (#users x rank), overwritten.
+	 * @param _Q The item factors (#items x rank), overwritten.
+	 */
+	public void train( FactorMatrix _P, FactorMatrix _Q, int _iterations, long _seed ) {
+		m_Weights.buildColumnIndex();
+		Random random = new Random(_seed);
+		float scale = 0.1f / (float)Math.sqrt(m_Rank);
+		float[] q = _Q.getData();
+		for( int k=0; k<q.length; ++k )
+			q[k] = scale * (random.nextFloat() - 0.5f);
+		for( int it=0; it<_iterations; ++it ) {
+			solveRows( _P, _Q, false );
+			solveRows( _Q, _P, true );
+		}
+	}
+
+	/**
+	 * Solves the factors of one user with Q fixed (e.g. for a fold-in).
+	 * @param _p Receives the factors of the user (length rank).
+	 * @param _gramian gramian(_Q), which stays the same as long as Q does.
+	 */
+	public void solveUser( int _user, float[] _p, FactorMatrix _Q, double[] _gramian ) {
+		double[] a = new double[m_Rank * m_Rank];
+		double[] b = new double[m_Rank];
+		solveRow( _user, false, _gramian, _Q, _p, 0, a, b, new float[m_Rank] );
+	}
+
+	/**
+	 * Solves all rows of _X with _Y fixed.
+	 * @param _byColumn false if the rows of _X are the users (rows of the
+	 * 	weights), true if they are the items (columns of the weights).
+	 */
+	private void solveRows( final FactorMatrix _X, final FactorMatrix _Y, final boolean _byColumn ) {
+		final double[] gramian = gramian(_Y);
+		m_Loop.forRange( _X.getNumRows(), Recommender.GRAIN, new ParallelLoop.Body() {
+			public void run( int _begin, int _end ) {
+				// The systems of one block reuse the same storage
+				double[] a = new double[m_Rank * m_Rank];
+				double[] b = new double[m_Rank];
+				float[] y = new float[m_Rank];
+				for( int r=_begin; r<_end; ++r )
+					solveRow( r, _byColumn, gramian, _Y, _X.getData(), r * m_Rank, a, b, y );
+			}
+		});
+	}
+
+	/**
+	 * Solves (Y^T Y + Y^T (C_r - I) Y + lambda I) x_r = Y^T C_r p_r for one
+	 * row r of X.
+	 * @param _x, _xOffset Receive x_r at [_xOffset, _xOffset+rank).
+	 * @param _a, _b, _y Temporary storage (rank x rank, rank and rank).
+	 */
+	private void solveRow( int _row, boolean _byColumn, double[] _gramian, FactorMatrix _Y, float[] _x, int _xOffset, double[] _a, double[] _b, float[] _y ) {
+		System.arraycopy(_gramian, 0, _a, 0, _a.length);
+		for( int j=0; j<m_Rank; ++j ) {
+			_a[j*m_Rank+j] += m_Lambda;
+			_b[j] = 0;
+		}
+		int begin = _byColumn ? m_Weights.getColumnBegin(_row) : m_Weights.getRowBegin(_row);
+		int end = _byColumn ? m_Weights.getColumnEnd(_row) : m_Weights.getRowEnd(_row);
+		// A row replaced by a fold-in is not stored in the CSR arrays
+		int[] columns = _byColumn ? null : m_Weights.getColumnIndices(_row);
+		float[] values = _byColumn ? null : m_Weights.getValues(_row);
+		for( int k=begin; k<end; ++k ) {
+			int other = _byColumn ? m_Weights.getRowIndex(k) : columns[k];
+			double c = 1 + m_Alpha * (_byColumn ? m_Weights.getValue(m_Weights.getEntry(k)) : values[k]);
+			// _Y may be mapped (loaded model)
+			_Y.copyRow(other, _y, 0);
+			// Only the lower triangle of _a is used
+			for( int j=0; j<m_Rank; ++j ) {
+				double y_j = _y[j];
+				double s = (c - 1) * y_j;
+				for( int l=0; l<=j; ++l )
+					_a[j*m_Rank+l] += s * _y[l];
+				_b[j] += c * y_j;
+			}
+		}
+		if( !solveCholesky(_a, _b, m_Rank) ) return;	// Not possible for lambda > 0
+		for( int j=0; j<m_Rank; ++j )
+			_x[_xOffset+j] = (float)_b[j];
+	}
+
+	/**
+	 * @return The lower triangle of _Y^T _Y (rank x rank, row by row).
+	 */
+	double[] gramian( final FactorMatrix _Y ) {
+		final int numRows = _Y.getNumRows();
+		final int grain = Math.max(Recommender.GRAIN, (numRows + GRAMIAN_BLOCKS - 1) / GRAMIAN_BLOCKS);
+		final double[][] partial = new double[(numRows + grain - 1) / grain][];
+		m_Loop.forRange( numRows, grain, new ParallelLoop.Body() {
+			public void run( int _begin, int _end ) {
+				float[] y = new float[m_Rank];
+				double[] g = new double[m_Rank * m_Rank];
+				for( int r=_begin; r<_end; ++r ) {
+					_Y.copyRow(r, y, 0);
+					for( int j=0; j<m_Rank; ++j ) {
+						double y_j = y[j];
+						for( int l=0; l<=j; ++l )
+							g[j*m_Rank+l] += y_j * y[l];
+					}
+				}
+				partial[_begin / grain] = g;
+			}
+		});
+		// Add the blocks in a fixed order
+		double[] gramian = new double[m_Rank * m_Rank];
+		for( double[] g : partial )
+			for( int k=0; k<g.length; ++k )
+				gramian[k] += g[k];
+		return gramian;
+	}
+
+	/**
+	 * Solves _a x = _b for a symmetric positive definite matrix. Only the
+	 * lower triangle of _a (row by row) is used; it is overwritten with the
+	 * Cholesky factor L. The solution is written to _b.
+	 * @return false if _a is not positive definite.
+	 */
+	static boolean solveCholesky( double[] _a, double[] _b, int _n ) {
+		// _a = L L^T
+		for( int j=0; j<_n; ++j ) {
+			double d = _a[j*_n+j];
+			for( int k=0; k<j; ++k )
+				d -= _a[j*_n+k] * _a[j*_n+k];
+			if( d <= 0 ) return false;
+			d = Math.sqrt(d);
+			_a[j*_n+j] = d;
+			for( int i=j+1; i<_n; ++i ) {
+				double s = _a[i*_n+j];
+				for( int k=0; k<j; ++k )
+					s -= _a[i*_n+k] * _a[j*_n+k];
+				_a[i*_n+j] = s / d;
+			}
+		}
+		// L y = b
+		for( int i=0; i<_n; ++i ) {
+			double s = _b[i];
+			for( int k=0; k<i; ++k )
+				s -= _a[i*_n+k] * _b[k];
+			_b[i] = s / _a[i*_n+i];
+		}
+		// L^T x = y
+		for( int i=_n-1; i>=0; --i ) {
+			double s = _b[i];
+			for( int k=i+1; k<_n; ++k )
+				s -= _a[k*_n+i] * _b[k];
+			_b[i] = s / _a[i*_n+i];
+		}
+		return true;
+	}
+}
@@ -1,14 +1,19 @@
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.FileInputStream;
-import java.util.ArrayList;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Iterator;
-import java.util.HashMap;
-import java.util.ListIterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 
 /**
@@ -22,38 +27,40 @@ import java.util.ListIterator;
  */
 public class InstanceBase {
 	private int m_NumAttributes;
-    private ArrayList<String[]> m_Data;
-    private int[] m_NumEntriesPerAttribute;
+	private int m_NumInstances;
     
     /**
-     * A copy of the data where each attribute is mapped to some integers.
+     * The data where each attribute is mapped to some integers. One array
+     * per attribute (column) with the value of each instance.
      *   - the same integer means the same original string.
      *   - the integers are packed [0,n] where n is the number of different
      *     entries of the respective attribute.
      *     
-     * The advantages of this dual representation:
+     * The advantages of this representation:
      *   - comparisons with integers are much faster
      *   - the values can be used as array indices.
+     *   - each string is stored only once (in m_Dictionaries).
+     *   
+     * Only the first m_NumInstances entries of each column are valid.
      */
-    private ArrayList<int[]> m_MappedData;
+    private int[][] m_Columns;
     
     /**
-	 * A map from string to unique id for each attribute.
-     */
-	HashMap<String,Integer>[] m_Maps;
-
-	/**
-     * One map for each attribute containing the original strings (inverse of m_Maps).
+	 * A map from string to unique id and back for each attribute.
      * 
-     * The elements are sorted by there unique index. So each item
-     * appears only once.
-     * 
-     * The map is created from createDualRepresentation()
+     * The dictionaries are filled while the data is loaded.
+     */
+	StringDictionary[] m_Dictionaries;
+    
+    /**
+     * Extension of the binary snapshot of a data file (see constructor).
      */
-    private ArrayList<String>[] m_InverseMaps;
+    public static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final int SNAPSHOT_MAGIC = 0x49425331;	// "IBS1"
+    private static final int SNAPSHOT_VERSION = 1;
     
     public final int getNumAttributes()         {return m_NumAttributes;}
-    public final int getNumInstances()          {return m_Data.size();}
+    public final int getNumInstances()          {return m_NumInstances;}
 
     /**
      * @param _DataFile 
@@ -68,47 +75,46 @@ public class InstanceBase {
 	 * the full line is loaded.
      */
     public InstanceBase(String _DataFile, int _ExpectedNumAttributes, int _NumAttributes) {
-    	m_Data = new ArrayList<String[]>();
-
+    	this(_DataFile, _ExpectedNumAttributes, _NumAttributes, 1);
+    }
+    
+    /**
+     * Same as above but the file is loaded by _NumThreads threads if more
+     * than one is given (see ParallelFileLoader). The result is the same.
+     */
+    public InstanceBase(String _DataFile, int _ExpectedNumAttributes, int _NumAttributes, int _NumThreads) {
+    	this(_DataFile, _ExpectedNumAttributes, _NumAttributes, _NumThreads, false);
+    }
+    
+    /**
+     * Same as above. If _UseSnapshot is set the data is read from the binary
+     * snapshot _DataFile + SNAPSHOT_SUFFIX instead of the text file, as long
+     * as the snapshot belongs to the current version of the text file
+     * (same size and modification time). Otherwise the text file is parsed
+     * and a new snapshot is written. Loading from a snapshot does not repeat
+     * the warnings about skipped lines.
+     */
+    public InstanceBase(String _DataFile, int _ExpectedNumAttributes, int _NumAttributes, int _NumThreads, boolean _UseSnapshot) {
         // load data from file
         try {
-            BufferedReader file = new BufferedReader(new InputStreamReader(new FileInputStream(_DataFile),"UTF-8"));
-            String line;
-			// Unknown number of attributes per line
-            int NumAttributesPerLine = -1;
-			int numLines = 0;
-            do {
-                line = file.readLine();
-                ++numLines;
-                if(line != null && !line.isEmpty()) {
-                    // The current line contains some data.
-					// Parse it as somehow separated token list
-					String[] tokens = line.split( "[;|,\\t*]\\s*" );
-					
-					// This is the first data found
-					if( NumAttributesPerLine == -1 ) {
-						NumAttributesPerLine = tokens.length;
-						m_NumAttributes = Math.min(_NumAttributes, NumAttributesPerLine);
-					}
-					if( NumAttributesPerLine != tokens.length )
-					{
-						// This token has an other length than the first one
-						// which is not allowed.
-						System.out.println(
-								"Not every line contains the same number of tokens (expected " + NumAttributesPerLine
-								+ " found " + tokens.length + " in line " + numLines + ")"
-						);
-					} else {
-						String[] newInstance = new String[m_NumAttributes];
-						for( int i=0; i<m_NumAttributes; ++i )
-							newInstance[i] = tokens[i].toLowerCase();
-						m_Data.add(newInstance);
-					}
-                }
-            } while(line != null);
-            file.close();
-            
-            CreateDualRepresentaion();
+        	File source = new File(_DataFile);
+        	File snapshot = new File(_DataFile + SNAPSHOT_SUFFIX);
+        	if( _UseSnapshot && loadSnapshot(snapshot, source, _NumAttributes) ) {
+        		System.out.println("\nUsing snapshot " + snapshot.getPath());
+        	} else {
+        		if( _NumThreads > 1 )
+        			loadParallel(_DataFile, _NumAttributes, _NumThreads);
+        		else
+        			loadSequential(_DataFile, _NumAttributes);
+        		
+        		if( _UseSnapshot ) {
+        			try {
+        				saveSnapshot(snapshot, source, _NumAttributes);
+        			} catch (IOException ex) {
+        				System.out.println("Could not write snapshot " + snapshot.getPath() + ": " + ex.getMessage());
+        			}
+        		}
+        	}
             
             // Debug output
             System.out.println("\nLoaded data base:\n#INSTANCES: " + getNumInstances());
@@ -119,6 +125,169 @@ public class InstanceBase {
         }
     }
     
+    /**
+     * Writes the columns and dictionaries to a binary file. The file starts
+     * with a header which identifies the text file it was created from:
+     *   magic, version, size and modification time of the source,
+     *   requested number of attributes, number of attributes and instances.
+     * Then follow the dictionaries of all attributes (see
+     * StringDictionary.write) and the columns. All values are big endian.
+     * 
+     * The file is written to a temporary file first and renamed afterwards,
+     * so an interrupted write never leaves a broken snapshot.
+     */
+    private void saveSnapshot(File _Snapshot, File _Source, int _NumAttributes) throws IOException {
+    	File temp = new File(_Snapshot.getPath() + ".tmp");
+    	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+    	try {
+    		out.writeInt(SNAPSHOT_MAGIC);
+    		out.writeInt(SNAPSHOT_VERSION);
+    		out.writeLong(_Source.length());
+    		out.writeLong(_Source.lastModified());
+    		out.writeInt(_NumAttributes);
+    		out.writeInt(m_NumAttributes);
+    		out.writeInt(m_NumInstances);
+    		for( int a=0; a<m_NumAttributes; ++a )
+    			m_Dictionaries[a].write(out);
+    		for( int a=0; a<m_NumAttributes; ++a ) {
+    			int[] column = m_Columns[a];
+    			for( int n=0; n<m_NumInstances; ++n )
+    				out.writeInt(column[n]);
+    		}
+    	} finally {
+    		out.close();
+    	}
+    	if( _Snapshot.exists() && !_Snapshot.delete() )
+    		throw new IOException("Cannot replace " + _Snapshot.getPath());
+    	if( !temp.renameTo(_Snapshot) )
+    		throw new IOException("Cannot rename " + temp.getPath());
+    }
+    
+    /**
+     * Loads a snapshot written by saveSnapshot through a memory mapping.
+     * @return false if there is no valid snapshot for the current source
+     * 	file. Nothing is changed in this case.
+     */
+    private boolean loadSnapshot(File _Snapshot, File _Source, int _NumAttributes) throws IOException {
+    	if( !_Snapshot.isFile() ) return false;
+    	RandomAccessFile file = new RandomAccessFile(_Snapshot, "r");
+    	try {
+    		FileChannel channel = file.getChannel();
+    		if( channel.size() > Integer.MAX_VALUE ) return false;
+    		ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    		if( buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_VERSION
+    				|| buffer.getLong() != _Source.length() || buffer.getLong() != _Source.lastModified()
+    				|| buffer.getInt() != _NumAttributes )
+    			return false;
+    		int numAttributes = buffer.getInt();
+    		int numInstances = buffer.getInt();
+    		if( numAttributes < 0 || numInstances < 0 ) return false;
+    		
+    		StringDictionary[] dictionaries = new StringDictionary[numAttributes];
+    		for( int a=0; a<numAttributes; ++a )
+    			dictionaries[a] = StringDictionary.read(buffer);
+    		int[][] columns = new int[numAttributes][numInstances];
+    		for( int a=0; a<numAttributes; ++a ) {
+    			buffer.asIntBuffer().get(columns[a]);
+    			buffer.position(buffer.position() + 4 * numInstances);
+    		}
+    		
+    		m_NumAttributes = numAttributes;
+    		m_NumInstances = numInstances;
+    		m_Dictionaries = dictionaries;
+    		m_Columns = columns;
+    		return true;
+    	} catch (BufferUnderflowException ex) {
+    		return false;	// Truncated file
+    	} catch (IllegalArgumentException ex) {
+    		return false;	// Corrupt file
+    	} finally {
+    		file.close();
+    	}
+    }
+    
+    /**
+     * Reads the file line by line and maps the tokens while parsing.
+     */
+    private void loadSequential(String _DataFile, int _NumAttributes) throws IOException {
+        InputStream file = new FileInputStream(_DataFile);
+        // Splits the lines at the same separators as "[;|,\\t*]\\s*"
+        LineTokenizer tokens = new LineTokenizer(file);
+		// Unknown number of attributes per line
+        int NumAttributesPerLine = -1;
+		int numLines = 0;
+        while( tokens.nextLine() ) {
+            ++numLines;
+            if( !tokens.isEmptyLine() ) {
+                // The current line contains some data.
+				
+				// This is the first data found
+				if( NumAttributesPerLine == -1 ) {
+					NumAttributesPerLine = tokens.getNumTokens();
+					m_NumAttributes = Math.min(_NumAttributes, NumAttributesPerLine);
+					InitializeMaps();
+				}
+				if( NumAttributesPerLine != tokens.getNumTokens() )
+				{
+					// This token has an other length than the first one
+					// which is not allowed.
+					System.out.println(
+							"Not every line contains the same number of tokens (expected " + NumAttributesPerLine
+							+ " found " + tokens.getNumTokens() + " in line " + numLines + ")"
+					);
+				} else {
+					ensureCapacity(m_NumInstances + 1);
+					for( int i=0; i<m_NumAttributes; ++i )
+						m_Columns[i][m_NumInstances] = tokens.getOrAddLowerCaseToken(i, m_Dictionaries[i]);
+					++m_NumInstances;
+				}
+            }
+        }
+        file.close();
+        
+        if( NumAttributesPerLine == -1 )
+        	InitializeMaps();	// No data at all
+    }
+    
+    /**
+     * Loads the file with a ParallelFileLoader and merges the dictionaries
+     * of the chunks in file order.
+     */
+    private void loadParallel(String _DataFile, int _NumAttributes, int _NumThreads) throws IOException {
+    	ParallelFileLoader loader = new ParallelFileLoader();
+    	List<ParallelFileLoader.Chunk> chunks = loader.load(_DataFile, _NumAttributes, _NumThreads);
+    	m_NumAttributes = loader.getNumAttributes();
+    	InitializeMaps();
+    	
+    	int numLines = 0;
+    	for( ParallelFileLoader.Chunk chunk : chunks ) {
+    		for( int[] skipped : chunk.skippedLines ) {
+				System.out.println(
+						"Not every line contains the same number of tokens (expected " + loader.getNumTokensPerLine()
+						+ " found " + skipped[1] + " in line " + (numLines + skipped[0]) + ")"
+				);
+    		}
+    		numLines += chunk.numLines;
+    		
+    		// Local id -> global id
+    		int[][] globalIds = new int[m_NumAttributes][];
+    		for( int a=0; a<m_NumAttributes; ++a ) {
+    			globalIds[a] = new int[chunk.dictionary[a].size()];
+    			for( int i=0; i<globalIds[a].length; ++i )
+    				globalIds[a][i] = m_Dictionaries[a].getOrAdd(chunk.dictionary[a], i);
+    		}
+    		
+    		ensureCapacity(m_NumInstances + chunk.numInstances);
+    		for( int a=0; a<m_NumAttributes; ++a ) {
+    			int[] column = m_Columns[a];
+    			int[] localIds = chunk.ids[a];
+    			for( int n=0; n<chunk.numInstances; ++n )
+    				column[m_NumInstances + n] = globalIds[a][localIds[n]];
+    		}
+    		m_NumInstances += chunk.numInstances;
+    	}
+    }
+    
     /**
      * @param _aPattern
      * getNumAttributes or less Strings for each attribute of one instance. The string
@@ -176,62 +345,176 @@ public class InstanceBase {
     }*/
 	
 	public int getNumUniqueEntries( int _AttributeIdx ) {
-		return m_NumEntriesPerAttribute[_AttributeIdx];
+		return m_Dictionaries[_AttributeIdx].size();
 	}
 	
+	/**
+	 * @return The mapped values of one attribute for all instances. Only the
+	 * first getNumInstances() entries are valid. Do not change the array.
+	 */
+	public int[] getColumn( int _AttributeIdx ) {
+		return m_Columns[_AttributeIdx];
+	}
+	
+	/**
+	 * @return The mapped value of one attribute of one instance.
+	 */
+	public int getMappedValue( int _InstanceIdx, int _AttributeIdx ) {
+		return m_Columns[_AttributeIdx][_InstanceIdx];
+	}
+	
+	/**
+	 * Iterates over the instances as strings. The rows are created from
+	 * the dictionaries on the fly.
+	 */
 	public Iterator<String[]> getIterator() {
-		return m_Data.iterator();
+		return new RowIterator<String[]>() {
+			@Override
+			protected String[] get( int _index ) {
+				String[] row = new String[m_NumAttributes];
+				for( int a=0; a<m_NumAttributes; ++a )
+					row[a] = getString(a, m_Columns[a][_index]);
+				return row;
+			}
+		};
 	}
 	
+	/**
+	 * Iterates over the instances as mapped values. The rows are copies
+	 * created on the fly; use getColumn to avoid them.
+	 */
 	public Iterator<int[]> getMappedIterator() {
-		return m_MappedData.iterator();
+		return new RowIterator<int[]>() {
+			@Override
+			protected int[] get( int _index ) {
+				int[] row = new int[m_NumAttributes];
+				for( int a=0; a<m_NumAttributes; ++a )
+					row[a] = m_Columns[a][_index];
+				return row;
+			}
+		};
+	}
+	
+	private abstract class RowIterator<T> implements Iterator<T> {
+		private int m_Index = 0;
+		
+		protected abstract T get( int _index );
+		
+		@Override
+		public boolean hasNext() {
+			return m_Index < m_NumInstances;
+		}
+		
+		@Override
+		public T next() {
+			if( m_Index >= m_NumInstances ) throw new NoSuchElementException();
+			return get(m_Index++);
+		}
+		
+		@Override
+		public void remove() {
+			if( m_Index == 0 ) throw new IllegalStateException();
+			InstanceBase.this.remove(--m_Index);
+		}
+	}
+	
+	/**
+	 * @return The dictionary of one attribute (mapped id <-> string).
+	 */
+	StringDictionary getDictionary( int _AttributeIdx ) {
+		return m_Dictionaries[_AttributeIdx];
 	}
 	
 	public String getString( int _AttributeIdx, int _MappedIndex ) {
-		return m_InverseMaps[_AttributeIdx].get(_MappedIndex);
+		return m_Dictionaries[_AttributeIdx].getString(_MappedIndex);
 	}
 	
 	public int getMappedID( int _AttributeIdx, String _token ) {
-		Integer r = m_Maps[_AttributeIdx].get(_token);
-		return r==null ? -1 : r;
+		return m_Dictionaries[_AttributeIdx].get(_token);
 	}
 	
 	
-	private void CreateDualRepresentaion() {
-		m_NumEntriesPerAttribute = new int[m_NumAttributes];
-		m_MappedData = new ArrayList<int[]>();
-		m_InverseMaps = new ArrayList[m_NumAttributes];
-		// Use hash maps to find out if the element was seen before and if yes
-		// which index it has.
-		m_Maps = new HashMap[m_NumAttributes];
-		for(int a=0; a<m_NumAttributes; ++a) {
-			m_Maps[a] = new HashMap<String,Integer>();
-			m_InverseMaps[a] = new ArrayList<String>();
-		}
-		
-		for( String[] it : m_Data )
-		{
-			int[] newDatum = new int[m_NumAttributes];
-			for( int a=0; a<m_NumAttributes; ++a)
-			{
-				Integer i = m_Maps[a].get(it[a]);
-				if( i==null ) {
-					m_Maps[a].put(it[a], new Integer(m_NumEntriesPerAttribute[a]));
-					newDatum[a] = m_NumEntriesPerAttribute[a];
-					m_InverseMaps[a].add(it[a]);
-					++m_NumEntriesPerAttribute[a];
-				} else {
-					newDatum[a] = i;
+	private void InitializeMaps() {
+		m_NumInstances = 0;
+		m_Columns = new int[m_NumAttributes][16];
+		m_Dictionaries = new StringDictionary[m_NumAttributes];
+		for(int a=0; a<m_NumAttributes; ++a)
+			m_Dictionaries[a] = new StringDictionary();
+	}
+	
+	/**
+	 * Makes sure that the columns can hold _NumInstances instances.
+	 */
+	private void ensureCapacity( int _NumInstances ) {
+		if( m_NumAttributes == 0 || m_Columns[0].length >= _NumInstances ) return;
+		int capacity = Math.max(_NumInstances, m_Columns[0].length * 2);
+		for( int a=0; a<m_NumAttributes; ++a )
+			m_Columns[a] = Arrays.copyOf(m_Columns[a], capacity);
+	}
+	
+	/**
+	 * Removes one instance. The following instances move one index down.
+	 */
+	public void remove(int _index) {
+		if( _index < 0 || _index >= m_NumInstances ) throw new IndexOutOfBoundsException();
+		for( int a=0; a<m_NumAttributes; ++a )
+			System.arraycopy(m_Columns[a], _index+1, m_Columns[a], _index, m_NumInstances-_index-1);
+		--m_NumInstances;
+	}
+	
+	/**
+	 * Removes all instances whose value of one attribute is not in a set of
+	 * allowed ids. This is a single pass over the data; the order of the
+	 * remaining instances does not change.
+	 * @param _AttributeIdx The attribute which is checked.
+	 * @param _AllowedIds The mapped ids (of _AttributeIdx) which are kept.
+	 * @param _Repack If true the ids of all attributes are packed again
+	 * 	afterwards, so values which do not occur any more are removed from
+	 * 	the dictionaries. The remaining values keep their relative order.
+	 * 	Otherwise the ids do not change.
+	 * @return The number of removed instances.
+	 */
+	public int retainIf(int _AttributeIdx, BitSet _AllowedIds, boolean _Repack) {
+		int[] filter = m_Columns[_AttributeIdx];
+		int numKept = 0;
+		for( int n=0; n<m_NumInstances; ++n ) {
+			if( _AllowedIds.get(filter[n]) ) {
+				if( numKept != n ) {
+					for( int a=0; a<m_NumAttributes; ++a )
+						m_Columns[a][numKept] = m_Columns[a][n];
 				}
+				++numKept;
 			}
-			m_MappedData.add(newDatum);
 		}
+		int numRemoved = m_NumInstances - numKept;
+		m_NumInstances = numKept;
+		
+		if( _Repack ) {
+			for( int a=0; a<m_NumAttributes; ++a )
+				repack(a);
+		}
+		return numRemoved;
 	}
 	
-	
-	public Iterator<String[]> remove(int _index) {
-		m_Data.remove(_index);
-		m_MappedData.remove(_index);
-		return m_Data.listIterator(_index);
+	/**
+	 * Removes the values of one attribute which are not used by any
+	 * instance and gives the others new packed ids in the same order.
+	 */
+	private void repack(int _AttributeIdx) {
+		int[] column = m_Columns[_AttributeIdx];
+		StringDictionary dictionary = m_Dictionaries[_AttributeIdx];
+		BitSet used = new BitSet(dictionary.size());
+		for( int n=0; n<m_NumInstances; ++n )
+			used.set(column[n]);
+		if( used.cardinality() == dictionary.size() ) return;
+		
+		// Old id -> new id
+		int[] newIds = new int[dictionary.size()];
+		StringDictionary packed = new StringDictionary();
+		for( int id = used.nextSetBit(0); id >= 0; id = used.nextSetBit(id+1) )
+			newIds[id] = packed.getOrAdd(dictionary, id);
+		for( int n=0; n<m_NumInstances; ++n )
+			column[n] = newIds[column[n]];
+		m_Dictionaries[_AttributeIdx] = packed;
 	}
 }
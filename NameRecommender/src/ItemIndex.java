@@ -0,0 +1,169 @@
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * An inverted file (IVF) index over item factors for approximate maximum
+ * inner product search.
+ *
+ * The items are clustered with spherical k-means: each item belongs to the
+ * (normalized) centroid with the largest inner product. A query ranks the
+ * centroids by their inner product with the query vector and scores only
+ * the items of the best numProbes lists. More probes give a higher recall
+ * and cost more time; probing all lists is exact.
+ *
+ * The factors of the items are copied in list order, so each list is
+ * scanned in one contiguous block.
+ */
+public class ItemIndex {
+	private int m_Rank;
+	private int m_NumLists;
+	private float[] m_Centroids;	// numLists * rank, normalized
+	private int[] m_ListBegin;		// List l is [m_ListBegin[l], m_ListBegin[l+1])
+	private int[] m_Items;			// Item ids in list order
+	private float[] m_Factors;		// Item factors in list order
+
+	/**
+	 * Clusters the rows of _items.
+	 * @param _numLists Number of lists (clusters). sqrt(#items) is a good
+	 * 	start.
+	 * @param _iterations Number of k-means iterations.
+	 * @param _seed Seed for the choice of the initial centroids.
+	 * @param _loop Runs the assignment of the items in parallel.
+	 */
+	ItemIndex( FactorMatrix _items, int _numLists, int _iterations, long _seed, ParallelLoop _loop ) {
+		final int numItems = _items.getNumRows();
+		m_Rank = _items.getRank();
+		m_NumLists = Math.max(1, Math.min(_numLists, numItems));
+		// A copy, the factors of a loaded model are mapped
+		final float[] data = new float[numItems * m_Rank];
+		for( int i=0; i<numItems; ++i )
+			_items.copyRow(i, data, i * m_Rank);
+
+		// Initial centroids: distinct random items
+		Random random = new Random(_seed);
+		m_Centroids = new float[m_NumLists * m_Rank];
+		int[] permutation = new int[numItems];
+		for( int i=0; i<numItems; ++i ) permutation[i] = i;
+		for( int l=0; l<m_NumLists; ++l ) {
+			int j = l + random.nextInt(numItems - l);
+			int t = permutation[l]; permutation[l] = permutation[j]; permutation[j] = t;
+			System.arraycopy(data, permutation[l] * m_Rank, m_Centroids, l * m_Rank, m_Rank);
+			normalize(m_Centroids, l * m_Rank);
+		}
+
+		final int[] assignment = new int[numItems];
+		for( int it=0; it<=_iterations; ++it ) {
+			// Assign each item to the centroid with the largest inner product
+			_loop.forRange( numItems, Recommender.GRAIN, new ParallelLoop.Body() {
+				public void run( int _begin, int _end ) {
+					for( int i=_begin; i<_end; ++i )
+						assignment[i] = nearestCentroid(data, i * m_Rank);
+				}
+			});
+			if( it == _iterations ) break;
+
+			// Move the centroids to the normalized mean of their items
+			float[] sums = new float[m_Centroids.length];
+			int[] counts = new int[m_NumLists];
+			for( int i=0; i<numItems; ++i ) {
+				int l = assignment[i];
+				++counts[l];
+				FloatVector.KERNELS.add(data, i * m_Rank, sums, l * m_Rank, m_Rank);
+			}
+			for( int l=0; l<m_NumLists; ++l ) {
+				if( counts[l] == 0 ) {
+					// Restart an empty list at a random item
+					System.arraycopy(data, random.nextInt(numItems) * m_Rank, sums, l * m_Rank, m_Rank);
+				}
+				if( normalize(sums, l * m_Rank) )
+					System.arraycopy(sums, l * m_Rank, m_Centroids, l * m_Rank, m_Rank);
+			}
+		}
+
+		// Sort the items by list (counting sort keeps the item order)
+		m_ListBegin = new int[m_NumLists+1];
+		for( int i=0; i<numItems; ++i )
+			++m_ListBegin[assignment[i]+1];
+		for( int l=0; l<m_NumLists; ++l )
+			m_ListBegin[l+1] += m_ListBegin[l];
+		int[] next = Arrays.copyOf(m_ListBegin, m_NumLists);
+		m_Items = new int[numItems];
+		m_Factors = new float[numItems * m_Rank];
+		for( int i=0; i<numItems; ++i ) {
+			int k = next[assignment[i]]++;
+			m_Items[k] = i;
+			System.arraycopy(data, i * m_Rank, m_Factors, k * m_Rank, m_Rank);
+		}
+	}
+
+	public int getNumLists() {
+		return m_NumLists;
+	}
+
+	/**
+	 * Offers the items of the _numProbes best lists for the query
+	 * _query[_offset, _offset+rank) to _items. The value of an item is its
+	 * inner product with the query, except for the items of row _row of
+	 * _seen: these are always offered with a value of 0.
+	 */
+	public void search( float[] _query, int _offset, int _numProbes, TopKSelector _items, SparseFloatMatrix _seen, int _row ) {
+		int[] seen = _seen.getColumnIndices(_row);
+		int seenBegin = _seen.getRowBegin(_row);
+		int seenEnd = _seen.getRowEnd(_row);
+		for( int k=seenBegin; k<seenEnd; ++k )
+			_items.offer(seen[k], 0.0f);
+
+		// Rank the lists by the inner product of their centroid
+		int numProbes = Math.max(1, Math.min(_numProbes, m_NumLists));
+		TopKSelector lists = new TopKSelector(numProbes);
+		for( int l=0; l<m_NumLists; ++l )
+			lists.offer(l, FloatVector.dot(_query, _offset, m_Centroids, l * m_Rank, m_Rank));
+		for( int l : lists.getSortedItems() ) {
+			for( int k=m_ListBegin[l]; k<m_ListBegin[l+1]; ++k ) {
+				int item = m_Items[k];
+				if( !contains(seen, seenBegin, seenEnd, item) )
+					_items.offer(item, FloatVector.dot(m_Factors, k * m_Rank, _query, _offset, m_Rank));
+			}
+		}
+	}
+
+	private int nearestCentroid( float[] _data, int _offset ) {
+		int best = 0;
+		float bestValue = Float.NEGATIVE_INFINITY;
+		for( int l=0; l<m_NumLists; ++l ) {
+			float value = FloatVector.dot(_data, _offset, m_Centroids, l * m_Rank, m_Rank);
+			if( value > bestValue ) {
+				bestValue = value;
+				best = l;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Scales _v[_offset, _offset+rank) to length 1.
+	 * @return false if the vector is 0 (it is not changed then).
+	 */
+	private boolean normalize( float[] _v, int _offset ) {
+		float length = (float)Math.sqrt(FloatVector.dot(_v, _offset, _v, _offset, m_Rank));
+		if( length == 0.0f ) return false;
+		FloatVector.KERNELS.scale(1.0f / length, _v, _offset, m_Rank);
+		return true;
+	}
+
+	/**
+	 * Binary search in the sorted columns [_begin,_end) of a row.
+	 */
+	private static boolean contains( int[] _columns, int _begin, int _end, int _column ) {
+		int lo = _begin, hi = _end - 1;
+		while( lo <= hi ) {
+			int mid = (lo + hi) >>> 1;
+			int c = _columns[mid];
+			if( c < _column ) lo = mid + 1;
+			else if( c > _column ) hi = mid - 1;
+			else return true;
+		}
+		return false;
+	}
+}
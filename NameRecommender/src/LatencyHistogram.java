@@ -0,0 +1,82 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Counts latencies in logarithmic buckets and estimates percentiles.
+ *
+ * The values are recorded in microseconds. Values below 16 us have a bucket
+ * each; above, every power of two is divided into 8 buckets, so a percentile
+ * is at most 12.5% too large. record() can be called from many threads at
+ * the same time and does not allocate anything.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKETS = 8;
+	private static final int LINEAR_LIMIT = 16;		// 2 * SUB_BUCKETS
+
+	private AtomicLongArray m_Counts = new AtomicLongArray( LINEAR_LIMIT + 60 * SUB_BUCKETS );
+
+	/**
+	 * Adds one measurement.
+	 * @param _nanos The latency in nanoseconds.
+	 */
+	public void record( long _nanos ) {
+		m_Counts.incrementAndGet( bucket(Math.max(_nanos / 1000, 0)) );
+	}
+
+	/**
+	 * @return The number of recorded values.
+	 */
+	public long getCount() {
+		long count = 0;
+		for( int b=0; b<m_Counts.length(); ++b )
+			count += m_Counts.get(b);
+		return count;
+	}
+
+	/**
+	 * @param _percentile A value in [0,100].
+	 * @return An upper bound of the percentile in microseconds (0 if nothing
+	 * 	was recorded).
+	 */
+	public long getPercentile( double _percentile ) {
+		long count = getCount();
+		if( count == 0 ) return 0;
+		long rank = Math.max( (long)Math.ceil(count * _percentile / 100.0), 1 );
+		long sum = 0;
+		for( int b=0; b<m_Counts.length(); ++b ) {
+			sum += m_Counts.get(b);
+			if( sum >= rank ) return upperBound(b);
+		}
+		return upperBound(m_Counts.length()-1);
+	}
+
+	/**
+	 * Removes all recorded values.
+	 */
+	public void clear() {
+		for( int b=0; b<m_Counts.length(); ++b )
+			m_Counts.set(b, 0);
+	}
+
+	/**
+	 * @return A line with the count and the p50/p99 latency.
+	 */
+	@Override
+	public String toString() {
+		return "requests " + getCount() + ", p50 " + getPercentile(50) + " us, p99 " + getPercentile(99) + " us";
+	}
+
+	private static int bucket( long _micros ) {
+		if( _micros < LINEAR_LIMIT ) return (int)_micros;
+		int exponent = 63 - Long.numberOfLeadingZeros(_micros);	// >= 4
+		int sub = (int)(_micros >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+		return LINEAR_LIMIT + (exponent - 4) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound( int _bucket ) {
+		if( _bucket < LINEAR_LIMIT ) return _bucket;
+		int exponent = (_bucket - LINEAR_LIMIT) / SUB_BUCKETS + 4;
+		int sub = (_bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+		return ((long)(SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+	}
+}
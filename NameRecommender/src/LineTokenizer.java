@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+
+/**
+ * Reads UTF-8 encoded text line by line and splits each line into tokens
+ * without regular expressions or intermediate arrays.
+ *
+ * The tokens are separated by one of the characters ; | , TAB * followed by
+ * optional white space. This is the same as line.split("[;|,\\t*]\\s*"):
+ * empty tokens between two separators are kept and empty tokens at the end
+ * of the line are dropped. Lines end at \n, \r or \r\n like
+ * BufferedReader.readLine.
+ *
+ * The separators are ASCII characters, so the split can be done on the raw
+ * bytes. Only the tokens which are actually requested are decoded.
+ */
+public class LineTokenizer {
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// toLowerCase of pure ASCII strings can be done per byte unless the
+	// default locale has special rules for 'I' (e.g. Turkish).
+	private static final boolean ASCII_LOWER_CASE = "I".toLowerCase().equals("i");
+
+	private InputStream m_Input;
+	private byte[] m_Buffer = new byte[1 << 16];
+	private int m_BufferEnd;		// Number of valid bytes in m_Buffer
+	private int m_Position;			// Start of the next line in m_Buffer
+	private boolean m_SkipLF;		// The last line ended with \r
+	private boolean m_EndOfInput;
+
+	// The current line
+	private byte[] m_Line;
+	private int m_LineBegin;
+	private int m_LineEnd;
+
+	// Token boundaries of the current line
+	private int[] m_TokenBegin = new int[8];
+	private int[] m_TokenEnd = new int[8];
+	private int m_NumTokens;
+
+	private char[] m_Chars = new char[64];
+
+	/**
+	 * Creates a tokenizer for lines which are passed by split().
+	 */
+	LineTokenizer() {
+	}
+
+	/**
+	 * Creates a tokenizer which reads its lines from a stream (nextLine()).
+	 */
+	LineTokenizer( InputStream _input ) {
+		m_Input = _input;
+	}
+
+	/**
+	 * Reads and splits the next line of the stream.
+	 * @return false if the end of the stream was reached.
+	 */
+	public boolean nextLine() throws IOException {
+		while( true ) {
+			// Search the end of the line in the buffer
+			for( int i=m_Position; i<m_BufferEnd; ++i ) {
+				byte b = m_Buffer[i];
+				if( m_SkipLF ) {
+					m_SkipLF = false;
+					if( b == '\n' ) {
+						m_Position = i+1;
+						continue;
+					}
+				}
+				if( b == '\n' || b == '\r' ) {
+					m_SkipLF = b == '\r';
+					split( m_Buffer, m_Position, i );
+					m_Position = i+1;
+					return true;
+				}
+			}
+			if( m_EndOfInput ) {
+				if( m_Position < m_BufferEnd ) {
+					// Last line without a line break
+					split( m_Buffer, m_Position, m_BufferEnd );
+					m_Position = m_BufferEnd;
+					return true;
+				}
+				return false;
+			}
+			fill();
+		}
+	}
+
+	/**
+	 * Moves the incomplete line to the front of the buffer and reads more.
+	 */
+	private void fill() throws IOException {
+		int rest = m_BufferEnd - m_Position;
+		if( rest == m_Buffer.length )
+			m_Buffer = Arrays.copyOf(m_Buffer, m_Buffer.length * 2);
+		else
+			System.arraycopy(m_Buffer, m_Position, m_Buffer, 0, rest);
+		m_Position = 0;
+		m_BufferEnd = rest;
+		int n = m_Input.read(m_Buffer, m_BufferEnd, m_Buffer.length - m_BufferEnd);
+		if( n < 0 )
+			m_EndOfInput = true;
+		else
+			m_BufferEnd += n;
+	}
+
+	/**
+	 * Splits the line _line[_begin, _end) (without line break).
+	 * @return The number of tokens.
+	 */
+	public int split( byte[] _line, int _begin, int _end ) {
+		m_Line = _line;
+		m_LineBegin = _begin;
+		m_LineEnd = _end;
+		m_NumTokens = 0;
+		if( _begin == _end ) return 0;
+
+		int tokenBegin = _begin;
+		for( int i=_begin; i<_end; ++i ) {
+			if( isSeparator(_line[i]) ) {
+				addToken( tokenBegin, i );
+				// Skip white space after the separator
+				++i;
+				while( i < _end && isWhiteSpace(_line[i]) ) ++i;
+				tokenBegin = i;
+				--i;
+			}
+		}
+		addToken( tokenBegin, _end );
+
+		// Drop empty tokens at the end
+		while( m_NumTokens > 0 && m_TokenBegin[m_NumTokens-1] == m_TokenEnd[m_NumTokens-1] )
+			--m_NumTokens;
+		return m_NumTokens;
+	}
+
+	private void addToken( int _begin, int _end ) {
+		if( m_NumTokens == m_TokenBegin.length ) {
+			m_TokenBegin = Arrays.copyOf(m_TokenBegin, m_NumTokens * 2);
+			m_TokenEnd = Arrays.copyOf(m_TokenEnd, m_NumTokens * 2);
+		}
+		m_TokenBegin[m_NumTokens] = _begin;
+		m_TokenEnd[m_NumTokens] = _end;
+		++m_NumTokens;
+	}
+
+	private static boolean isSeparator( byte _b ) {
+		return _b == ';' || _b == '|' || _b == ',' || _b == '\t' || _b == '*';
+	}
+
+	// Same as \s in java.util.regex
+	private static boolean isWhiteSpace( byte _b ) {
+		return _b == ' ' || _b == '\t' || _b == '\n' || _b == 0x0B || _b == '\f' || _b == '\r';
+	}
+
+	/**
+	 * @return true if the current line has no characters at all.
+	 */
+	public boolean isEmptyLine() {
+		return m_LineBegin == m_LineEnd;
+	}
+
+	public int getNumTokens() {
+		return m_NumTokens;
+	}
+
+	/**
+	 * @return The _index-th token of the current line in lower case (same as
+	 * 	String.toLowerCase()).
+	 */
+	public String getLowerCaseToken( int _index ) {
+		int begin = m_TokenBegin[_index];
+		int end = m_TokenEnd[_index];
+		int length = end - begin;
+		if( ASCII_LOWER_CASE ) {
+			if( m_Chars.length < length )
+				m_Chars = new char[Math.max(length, m_Chars.length * 2)];
+			int i = 0;
+			for( ; i<length; ++i ) {
+				byte b = m_Line[begin+i];
+				if( b < 0 ) break;	// Not ASCII
+				m_Chars[i] = (b >= 'A' && b <= 'Z') ? (char)(b + ('a' - 'A')) : (char)b;
+			}
+			if( i == length )
+				return new String(m_Chars, 0, length);
+		}
+		return new String(m_Line, begin, length, UTF8).toLowerCase();
+	}
+
+	/**
+	 * Looks up the _index-th token in lower case in a dictionary and adds it
+	 * if it is unknown. ASCII tokens are converted in place in the line
+	 * buffer and looked up without creating a String.
+	 * @return The id of the token in _dictionary.
+	 */
+	public int getOrAddLowerCaseToken( int _index, StringDictionary _dictionary ) {
+		int begin = m_TokenBegin[_index];
+		int end = m_TokenEnd[_index];
+		if( ASCII_LOWER_CASE ) {
+			int i = begin;
+			for( ; i<end; ++i ) {
+				byte b = m_Line[i];
+				if( b < 0 ) break;	// Not ASCII
+				if( b >= 'A' && b <= 'Z' )
+					m_Line[i] = (byte)(b + ('a' - 'A'));
+			}
+			if( i == end )
+				return _dictionary.getOrAdd(m_Line, begin, end);
+		}
+		return _dictionary.getOrAdd(getLowerCaseToken(_index));
+	}
+}
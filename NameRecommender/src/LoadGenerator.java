@@ -0,0 +1,91 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A client which sends recommendation requests to a RecommendationServer and
+ * reports the throughput and the p50/p99 latency seen by the client.
+ *
+ * Usage: LoadGenerator <user file> [server url] [threads] [requests per thread] [k]
+ *
+ * The user names are taken from the first column of the user file (same
+ * format as the test user file). Each thread walks through the users in
+ * its own order.
+ */
+public class LoadGenerator {
+
+	public static void main( String[] args ) throws Exception {
+		if( args.length < 1 ) {
+			System.out.println("Usage: LoadGenerator <user file> [server url] [threads] [requests per thread] [k]");
+			return;
+		}
+		InstanceBase users = new InstanceBase(args[0], 1, 1);
+		String server = args.length > 1 ? args[1] : "http://localhost:" + RecommendationServer.DEFAULT_PORT;
+		int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		final int numRequests = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+		int k = args.length > 4 ? Integer.parseInt(args[4]) : RecommendationServer.DEFAULT_K;
+		if( users.getNumInstances() == 0 ) {
+			System.out.println("No users in " + args[0]);
+			return;
+		}
+
+		// Prepare all URLs up front so the measurement contains requests only
+		final List<URL> urls = new ArrayList<URL>();
+		for( int n=0; n<users.getNumInstances(); ++n ) {
+			String name = users.getString(0, users.getMappedValue(n, 0));
+			urls.add( new URL(server + "/recommend?user=" + URLEncoder.encode(name, "UTF-8") + "&k=" + k) );
+		}
+
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong errors = new AtomicLong();
+		Thread[] threads = new Thread[numThreads];
+		long start = System.nanoTime();
+		for( int t=0; t<numThreads; ++t ) {
+			final int offset = t * urls.size() / numThreads;
+			threads[t] = new Thread() {
+				public void run() {
+					byte[] buffer = new byte[1 << 16];
+					for( int r=0; r<numRequests; ++r ) {
+						URL url = urls.get( (offset + r) % urls.size() );
+						long begin = System.nanoTime();
+						try {
+							if( !request(url, buffer) ) errors.incrementAndGet();
+						} catch (IOException ex) {
+							errors.incrementAndGet();
+						}
+						latency.record( System.nanoTime() - begin );
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for( Thread thread : threads )
+			thread.join();
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.println( latency.toString() + ", errors " + errors.get() );
+		System.out.println( String.format("%.1f requests/s", latency.getCount() / seconds) );
+	}
+
+	/**
+	 * Sends one request and reads the whole response (so the connection
+	 * can be reused).
+	 * @return true if the server answered with 200.
+	 */
+	private static boolean request( URL _url, byte[] _buffer ) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection)_url.openConnection();
+		int status = connection.getResponseCode();
+		InputStream in = status == 200 ? connection.getInputStream() : connection.getErrorStream();
+		if( in != null ) {
+			while( in.read(_buffer) >= 0 ) {}
+			in.close();
+		}
+		return status == 200;
+	}
+}
@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Loads a text file in the format of InstanceBase with several threads.
+ *
+ * The file is memory mapped and cut into chunks which start at the
+ * beginning of a line. Each chunk is tokenized (LineTokenizer) and
+ * dictionary encoded by its own thread. The ids of a chunk are local: they
+ * are assigned in the order in which the strings first appear in the chunk.
+ * Merging the local dictionaries chunk by chunk in file order therefore
+ * assigns the same global ids as a single pass over the whole file.
+ */
+public class ParallelFileLoader {
+
+	/**
+	 * The result for one part of the file.
+	 */
+	static class Chunk {
+		/** Number of lines in the chunk (including empty and skipped ones) */
+		int numLines;
+		/** Number of loaded instances */
+		int numInstances;
+		/** Local id of each attribute of each instance [attribute][instance] */
+		int[][] ids;
+		/** Strings of the local ids per attribute */
+		StringDictionary[] dictionary;
+		/** Lines with a wrong number of tokens: {line in chunk (1-based), #tokens} */
+		ArrayList<int[]> skippedLines = new ArrayList<int[]>();
+	}
+
+	// Upper bound for one mapping (FileChannel.map is limited to 2 GB)
+	private static final long MAX_CHUNK_SIZE = 1 << 30;
+
+	private int m_NumTokensPerLine = -1;
+	private int m_NumAttributes;
+
+	/**
+	 * @return The number of tokens of the first non-empty line or -1 if
+	 * 	there is none. All other lines need the same number of tokens.
+	 */
+	public int getNumTokensPerLine() {
+		return m_NumTokensPerLine;
+	}
+
+	/**
+	 * @return The number of attributes which are stored per instance.
+	 */
+	public int getNumAttributes() {
+		return m_NumAttributes;
+	}
+
+	/**
+	 * Loads the file.
+	 * @param _numAttributes Maximum number of attributes loaded per line.
+	 * @param _numThreads Number of threads and minimum number of chunks.
+	 * @return The chunks in file order.
+	 */
+	public List<Chunk> load( String _file, int _numAttributes, int _numThreads ) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(_file, "r");
+		ExecutorService executor = Executors.newFixedThreadPool( Math.max(_numThreads, 1) );
+		try {
+			final FileChannel channel = file.getChannel();
+			long size = channel.size();
+
+			// The first line with data defines the number of tokens per line
+			LineTokenizer first = new LineTokenizer( new MappedInputStream(channel, 0, Math.min(size, MAX_CHUNK_SIZE)) );
+			while( first.nextLine() ) {
+				if( !first.isEmptyLine() ) {
+					m_NumTokensPerLine = first.getNumTokens();
+					break;
+				}
+			}
+			List<Chunk> chunks = new ArrayList<Chunk>();
+			if( m_NumTokensPerLine == -1 )
+				return chunks;	// No data at all
+			m_NumAttributes = Math.min(_numAttributes, m_NumTokensPerLine);
+
+			long[] bounds = findChunkBounds( channel, size, _numThreads );
+			List<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+			for( int c=0; c+1<bounds.length; ++c ) {
+				final long begin = bounds[c];
+				final long end = bounds[c+1];
+				futures.add( executor.submit(new Callable<Chunk>() {
+					public Chunk call() throws IOException {
+						return loadChunk( channel, begin, end );
+					}
+				}) );
+			}
+			for( Future<Chunk> f : futures )
+				chunks.add( f.get() );
+			return chunks;
+		} catch( InterruptedException e ) {
+			throw new IOException(e);
+		} catch( ExecutionException e ) {
+			if( e.getCause() instanceof IOException ) throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		} finally {
+			executor.shutdown();
+			file.close();
+		}
+	}
+
+	/**
+	 * Cuts [0,_size) into at least _numChunks parts. Each part except the
+	 * first starts directly behind a line break.
+	 */
+	private static long[] findChunkBounds( FileChannel _channel, long _size, int _numChunks ) throws IOException {
+		int numChunks = (int)Math.max( Math.max(_numChunks, 1), (_size + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE );
+		long[] bounds = new long[numChunks+1];
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		for( int c=1; c<numChunks; ++c ) {
+			long pos = Math.max( _size / numChunks * c, bounds[c-1] );
+			// Search the next line break (\n, \r or \r\n)
+			boolean found = false;
+			boolean afterCR = false;
+			while( pos < _size ) {
+				buffer.clear();
+				int n = _channel.read(buffer, pos);
+				if( n <= 0 ) break;
+				int i = 0;
+				if( afterCR ) {
+					if( buffer.get(0) == '\n' ) ++i;
+					found = true;
+				} else {
+					for( ; i<n; ++i ) {
+						byte b = buffer.get(i);
+						if( b == '\n' ) { ++i; found = true; break; }
+						if( b == '\r' ) {
+							++i;
+							if( i == n ) { afterCR = true; break; }
+							if( buffer.get(i) == '\n' ) ++i;
+							found = true;
+							break;
+						}
+					}
+				}
+				pos += i;
+				if( found ) break;
+			}
+			bounds[c] = Math.min(pos, _size);
+		}
+		bounds[numChunks] = _size;
+		return bounds;
+	}
+
+	private Chunk loadChunk( FileChannel _channel, long _begin, long _end ) throws IOException {
+		Chunk chunk = new Chunk();
+		int capacity = 16;
+		chunk.ids = new int[m_NumAttributes][capacity];
+		chunk.dictionary = new StringDictionary[m_NumAttributes];
+		for( int a=0; a<m_NumAttributes; ++a )
+			chunk.dictionary[a] = new StringDictionary();
+
+		LineTokenizer tokens = new LineTokenizer( new MappedInputStream(_channel, _begin, _end) );
+		while( tokens.nextLine() ) {
+			++chunk.numLines;
+			if( tokens.isEmptyLine() ) continue;
+			if( tokens.getNumTokens() != m_NumTokensPerLine ) {
+				chunk.skippedLines.add( new int[]{chunk.numLines, tokens.getNumTokens()} );
+				continue;
+			}
+			if( chunk.numInstances == capacity ) {
+				capacity *= 2;
+				for( int a=0; a<m_NumAttributes; ++a )
+					chunk.ids[a] = Arrays.copyOf(chunk.ids[a], capacity);
+			}
+			for( int a=0; a<m_NumAttributes; ++a )
+				chunk.ids[a][chunk.numInstances] = tokens.getOrAddLowerCaseToken(a, chunk.dictionary[a]);
+			++chunk.numInstances;
+		}
+		return chunk;
+	}
+
+	/**
+	 * Reads a part of a file through a memory mapping.
+	 */
+	private static class MappedInputStream extends InputStream {
+		private MappedByteBuffer m_Buffer;
+
+		MappedInputStream( FileChannel _channel, long _begin, long _end ) throws IOException {
+			m_Buffer = _channel.map(FileChannel.MapMode.READ_ONLY, _begin, _end - _begin);
+		}
+
+		@Override
+		public int read() {
+			return m_Buffer.hasRemaining() ? (m_Buffer.get() & 0xff) : -1;
+		}
+
+		@Override
+		public int read( byte[] _b, int _off, int _len ) {
+			if( _len == 0 ) return 0;
+			if( !m_Buffer.hasRemaining() ) return -1;
+			int n = Math.min(_len, m_Buffer.remaining());
+			m_Buffer.get(_b, _off, n);
+			return n;
+		}
+	}
+}
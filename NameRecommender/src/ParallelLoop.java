@@ -0,0 +1,122 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Runs loops over an index range [0,n) on a fork join pool.
+ *
+ * The range is cut into blocks of a fixed size (the grain) and each block is
+ * processed by one task. The block boundaries do not depend on the number
+ * of threads. Sums are computed per block and afterwards added in block
+ * order, so the result of sum() is the same for every parallelism.
+ *
+ * A parallelism of 1 runs everything on the calling thread.
+ */
+public class ParallelLoop {
+
+	/**
+	 * The work for one block [_begin, _end) of the range.
+	 */
+	public interface Body {
+		void run( int _begin, int _end );
+	}
+
+	/**
+	 * The work for one block [_begin, _end) of the range which returns a
+	 * partial sum.
+	 */
+	public interface Reduction {
+		float run( int _begin, int _end );
+	}
+
+	private ForkJoinPool m_Pool;
+
+	ParallelLoop( int _parallelism ) {
+		if( _parallelism > 1 )
+			m_Pool = new ForkJoinPool( _parallelism );
+	}
+
+	/**
+	 * Stops the threads of the pool. The loop must not be used afterwards.
+	 */
+	public void close() {
+		if( m_Pool != null )
+			m_Pool.shutdown();
+	}
+
+	/**
+	 * Calls _body for all blocks of [0,_n). The blocks may run concurrently
+	 * and in any order.
+	 */
+	public void forRange( int _n, int _grain, Body _body ) {
+		if( _n <= 0 ) return;
+		int numBlocks = (_n + _grain - 1) / _grain;
+		if( m_Pool == null || numBlocks == 1 )
+			runBlocks( _n, _grain, 0, numBlocks, _body, null );
+		else
+			m_Pool.invoke( new BlockTask( _n, _grain, 0, numBlocks, _body, null ) );
+	}
+
+	/**
+	 * Calls _reduction for all blocks of [0,_n) and adds up the partial sums
+	 * in block order.
+	 */
+	public float sum( int _n, int _grain, Reduction _reduction ) {
+		if( _n <= 0 ) return 0.0f;
+		int numBlocks = (_n + _grain - 1) / _grain;
+		float[] partialSums = new float[numBlocks];
+		if( m_Pool == null || numBlocks == 1 )
+			runBlocks( _n, _grain, 0, numBlocks, _reduction, partialSums );
+		else
+			m_Pool.invoke( new BlockTask( _n, _grain, 0, numBlocks, _reduction, partialSums ) );
+		float res = 0.0f;
+		for( int b=0; b<numBlocks; ++b )
+			res += partialSums[b];
+		return res;
+	}
+
+	private static void runBlocks( int _n, int _grain, int _firstBlock, int _lastBlock, Object _work, float[] _partialSums ) {
+		for( int b=_firstBlock; b<_lastBlock; ++b ) {
+			int begin = b * _grain;
+			int end = Math.min(begin + _grain, _n);
+			if( _partialSums == null )
+				((Body)_work).run( begin, end );
+			else
+				_partialSums[b] = ((Reduction)_work).run( begin, end );
+		}
+	}
+
+	/**
+	 * Splits the block range recursively until a single block remains.
+	 */
+	private static class BlockTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private int m_N;
+		private int m_Grain;
+		private int m_FirstBlock;
+		private int m_LastBlock;
+		private Object m_Work;
+		private float[] m_PartialSums;
+
+		BlockTask( int _n, int _grain, int _firstBlock, int _lastBlock, Object _work, float[] _partialSums ) {
+			m_N = _n;
+			m_Grain = _grain;
+			m_FirstBlock = _firstBlock;
+			m_LastBlock = _lastBlock;
+			m_Work = _work;
+			m_PartialSums = _partialSums;
+		}
+
+		@Override
+		protected void compute() {
+			if( m_LastBlock - m_FirstBlock == 1 ) {
+				runBlocks( m_N, m_Grain, m_FirstBlock, m_LastBlock, m_Work, m_PartialSums );
+				return;
+			}
+			int mid = (m_FirstBlock + m_LastBlock) >>> 1;
+			invokeAll( new BlockTask( m_N, m_Grain, m_FirstBlock, mid, m_Work, m_PartialSums ),
+					   new BlockTask( m_N, m_Grain, mid, m_LastBlock, m_Work, m_PartialSums ) );
+		}
+	}
+}
@@ -1,9 +1,24 @@
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 
 /**
  * The set of parameters which controls the output of the recommender. This
  * is the only thing which can be learned to change the recommended item list. 
  */
 public class ParameterSet {
+	/** Values of ENGINE */
+	static final int ENGINE_GREEDY = 0;
+	static final int ENGINE_ALS = 1;
+	
+	/** Values of SGD_SCHEDULE */
+	static final int SGD_NONE = 0;
+	static final int SGD_SEQUENTIAL = 1;
+	static final int SGD_HOGWILD = 2;
+	static final int SGD_DSGD = 3;
+	
 	/** Each action of a user is increasing its interest value of the
 	 * specific name.
 	 * Each action can have an other weight where the order is not really known.
@@ -25,4 +40,105 @@ public class ParameterSet {
 	 * the last step is less than EPSILON stop.
 	 */
 	float EPSILON = 0.0001f;
+	
+	/** The training algorithm: ENGINE_GREEDY computes one factor after the
+	 * other (see Recommender.computeNextFactor), ENGINE_ALS all factors at
+	 * once with implicit feedback ALS (see ImplicitALS). The default can be
+	 * changed with -DParameterSet.engine=als.
+	 */
+	int ENGINE = "als".equalsIgnoreCase(System.getProperty("ParameterSet.engine")) ? ENGINE_ALS : ENGINE_GREEDY;
+	
+	/** Number of ALS sweeps (users and items once each).
+	 */
+	int ALS_ITERATIONS = 10;
+	
+	/** Scales the weights to the ALS confidences c = 1 + ALS_ALPHA * weight.
+	 */
+	float ALS_ALPHA = 40.0f;
+	
+	/** Regularization of the ALS factors.
+	 */
+	float ALS_LAMBDA = 0.1f;
+	
+	/** Refinement of the factors with SGD on the factorized neighborhood
+	 * model (see Recommender.learnFactorizedNeighborhoodModel):
+	 * SGD_NONE skips it, SGD_SEQUENTIAL updates the users one after the
+	 * other, SGD_HOGWILD updates shuffled shards of users in parallel and
+	 * writes the shared item factors without locks (not reproducible),
+	 * SGD_DSGD updates blocks of users and items without common values in
+	 * parallel (reproducible for the same PARALLELISM). The default can be
+	 * changed with -DParameterSet.sgd=sequential|hogwild|dsgd.
+	 */
+	int SGD_SCHEDULE = parseSgdSchedule(System.getProperty("ParameterSet.sgd"));
+	
+	/** Number of threads used for training (-DParameterSet.parallelism,
+	 * default: all processors). The result does not depend on this number
+	 * (except for SGD_HOGWILD and SGD_DSGD).
+	 */
+	int PARALLELISM = Integer.getInteger("ParameterSet.parallelism", Runtime.getRuntime().availableProcessors());
+	
+	/**
+	 * @return true if both sets train the same model. PARALLELISM is
+	 * 	ignored; it only changes the SGD steps of SGD_HOGWILD and SGD_DSGD.
+	 */
+	public boolean isSameModel( ParameterSet _other ) {
+		return Arrays.equals(ACTION_WEIGHT, _other.ACTION_WEIGHT)
+				&& MAX_RANK == _other.MAX_RANK
+				&& Float.compare(SHRINKAGE, _other.SHRINKAGE) == 0
+				&& Float.compare(EPSILON, _other.EPSILON) == 0
+				&& ENGINE == _other.ENGINE
+				&& ALS_ITERATIONS == _other.ALS_ITERATIONS
+				&& Float.compare(ALS_ALPHA, _other.ALS_ALPHA) == 0
+				&& Float.compare(ALS_LAMBDA, _other.ALS_LAMBDA) == 0
+				&& SGD_SCHEDULE == _other.SGD_SCHEDULE;
+	}
+	
+	/**
+	 * Writes all parameters which change the model (not PARALLELISM).
+	 */
+	public void write( DataOutput _output ) throws IOException {
+		_output.writeInt(ACTION_WEIGHT.length);
+		for( float w : ACTION_WEIGHT )
+			_output.writeFloat(w);
+		_output.writeInt(MAX_RANK);
+		_output.writeFloat(SHRINKAGE);
+		_output.writeFloat(EPSILON);
+		_output.writeInt(ENGINE);
+		_output.writeInt(ALS_ITERATIONS);
+		_output.writeFloat(ALS_ALPHA);
+		_output.writeFloat(ALS_LAMBDA);
+		_output.writeInt(SGD_SCHEDULE);
+	}
+	
+	/**
+	 * Reads parameters written by write(). PARALLELISM gets its default.
+	 */
+	public static ParameterSet read( ByteBuffer _buffer ) {
+		ParameterSet params = new ParameterSet();
+		int numWeights = _buffer.getInt();
+		if( numWeights < 0 ) throw new IllegalArgumentException("Corrupt parameters");
+		params.ACTION_WEIGHT = new float[numWeights];
+		for( int i=0; i<numWeights; ++i )
+			params.ACTION_WEIGHT[i] = _buffer.getFloat();
+		params.MAX_RANK = _buffer.getInt();
+		params.SHRINKAGE = _buffer.getFloat();
+		params.EPSILON = _buffer.getFloat();
+		params.ENGINE = _buffer.getInt();
+		params.ALS_ITERATIONS = _buffer.getInt();
+		params.ALS_ALPHA = _buffer.getFloat();
+		params.ALS_LAMBDA = _buffer.getFloat();
+		params.SGD_SCHEDULE = _buffer.getInt();
+		return params;
+	}
+	
+	/**
+	 * @return The SGD_SCHEDULE for a name (SGD_NONE for null).
+	 */
+	static int parseSgdSchedule( String _name ) {
+		if( _name == null || _name.equalsIgnoreCase("none") ) return SGD_NONE;
+		if( _name.equalsIgnoreCase("sequential") ) return SGD_SEQUENTIAL;
+		if( _name.equalsIgnoreCase("hogwild") ) return SGD_HOGWILD;
+		if( _name.equalsIgnoreCase("dsgd") ) return SGD_DSGD;
+		throw new IllegalArgumentException("Unknown SGD schedule " + _name);
+	}
 }
@@ -1,8 +1,17 @@
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 
 public class Program {
@@ -15,6 +24,15 @@ public class Program {
 	 * 
 	 * Afterwards an arbitrary number of files with the item similarity can
 	 * be injected.
+	 * 
+	 * Task "server" trains (or loads) the model like task 1 and answers
+	 * requests over HTTP instead of writing the result file (see
+	 * RecommendationServer). The lists of the test users are precomputed.
+	 * The port can be set with -DRecommendationServer.port=<port>, the size
+	 * of the cache (item ids) with -DRecommendationServer.cacheSize=<num>.
+	 * 
+	 * Task "index" trains (or loads) the model and compares the approximate
+	 * item index with the exact scoring (recall@1000 and queries/s).
 	 */
 	public static void main(String[] args) {
 		
@@ -24,11 +42,21 @@ public class Program {
 		}
 		
 		String task = args[0];
-		loadData(args);
+		if( task.equalsIgnoreCase("server") ) {
+			prepareRecommender(args);
+			serve();
+			return;
+		}
+		if( task.equalsIgnoreCase("index") ) {
+			prepareRecommender(args);
+			evaluateItemIndex(1000);
+			return;
+		}
 		if( task.equalsIgnoreCase("1") ) {
-			createRecommender();
+			prepareRecommender(args);
 		}
 		else{		
+			loadData(args);
 			System.out.println("RMSE = " + crossValidate(10));
 		}
 		
@@ -45,37 +73,38 @@ public class Program {
 	 */
 	private static void loadData(String[] files) {
 		// Load without time stamp
-		userData = new InstanceBase(files[1], 4, 3);
+		userData = new InstanceBase(files[1], 4, 3, Runtime.getRuntime().availableProcessors(), true);
 		
 		if( files.length > 2 )
 		{
-			existingNames = new InstanceBase(files[2], 1, 1);
+			existingNames = new InstanceBase(files[2], 1, 1, 1, true);
 			filterData( userData, 2, existingNames );
 			System.out.println("\nPrepared data.");
 		}
 		
 		if( files.length > 3 )
-			testUsers = new InstanceBase(files[3], 1, 1);
+			testUsers = new InstanceBase(files[3], 1, 1, 1, true);
 	}
 	
 	/**
 	 * Remove instances from the data by removing all which have a wrong value
 	 * in the specified attribute. A value is not permitted (wrong) if it is
 	 * not in the given itemList (on attribute 0 form that list).
+	 * 
+	 * The ids of the data are not changed (no repacking), so the removed
+	 * values still count for getNumUniqueEntries.
 	 * @param _data
 	 * @param _itemList
 	 */
 	private static void filterData(InstanceBase _data, int _attribute, InstanceBase _itemList) {
-		int index = 0;
-		for(Iterator<String[]> it = _data.getIterator(); it.hasNext(); ) {
-			String[] line = it.next();
-			if( _itemList.getMappedID(0, line[_attribute]) == -1 )
-			{
-				it = _data.remove(index);
-				//it.remove();
-			} else
-				++index;
+		// The ids of the data which appear in the item list
+		BitSet allowed = new BitSet(_data.getNumUniqueEntries(_attribute));
+		for( int i=0; i<_itemList.getNumUniqueEntries(0); ++i ) {
+			int id = _data.getMappedID(_attribute, _itemList.getString(0, i));
+			if( id != -1 )
+				allowed.set(id);
 		}
+		_data.retainIf(_attribute, allowed, false);
 	}
 
 	/**
@@ -88,6 +117,111 @@ public class Program {
 	private static void createRecommender() {
 		Evaluator trainer = new Evaluator();
 		recommender = trainer.train( userData, existingNames );
+		recommender.setNames( userData.getDictionary(0), userData.getDictionary(2) );
+	}
+	
+	/**
+	 * Loads the model of an earlier run if the data did not change or
+	 * trains and saves a new one. Loads the test users.
+	 */
+	private static void prepareRecommender(String[] files) {
+		recommender = loadModel(files);
+		if( recommender == null ) {
+			loadData(files);
+			createRecommender();
+			saveModel(files);
+		} else if( files.length > 3 )
+			testUsers = new InstanceBase(files[3], 1, 1, 1, true);
+	}
+	
+	/**
+	 * Starts a RecommendationServer for the current recommender. The server
+	 * runs until the process is terminated.
+	 */
+	private static void serve() {
+		int port = Integer.getInteger("RecommendationServer.port", RecommendationServer.DEFAULT_PORT);
+		long cacheSize = Long.getLong("RecommendationServer.cacheSize", RecommendationServer.DEFAULT_CACHE_SIZE);
+		// Read by the JDK HTTP server when its first instance is created
+		// (see RecommendationServer)
+		if( System.getProperty("sun.net.httpserver.nodelay") == null )
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		try {
+			final RecommendationServer server = new RecommendationServer( recommender, port, Runtime.getRuntime().availableProcessors(), cacheSize );
+			if( testUsers != null ) {
+				// The test users are warm: look them up by name
+				int[] users = new int[testUsers.getNumInstances()];
+				int n = 0;
+				for( int i=0; i<testUsers.getNumInstances(); ++i ) {
+					int id = recommender.getUserId( testUsers.getString(0, testUsers.getMappedValue(i, 0)) );
+					if( id != -1 ) users[n++] = id;
+				}
+				server.precompute( Arrays.copyOf(users, n), RecommendationServer.DEFAULT_K );
+				System.out.println("\nPrecomputed " + n + " users.");
+			}
+			Runtime.getRuntime().addShutdownHook( new Thread() {
+				public void run() {
+					System.out.println( "Server latency: " + server.getLatency() );
+					System.out.println( "Server " + server.getCache() );
+				}
+			});
+			server.start();
+			System.out.println( "Serving on http://localhost:" + server.getPort() + "/recommend?user=<name>&k=<num>" );
+		} catch (IOException e) {
+			System.out.println("Could not start the server: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Builds an item index with sqrt(#items) lists and evaluates it for all
+	 * users with an increasing number of probes.
+	 */
+	private static void evaluateItemIndex(int numRecommendations) {
+		int numLists = (int)Math.ceil(Math.sqrt(recommender.getNumItems()));
+		long start = System.nanoTime();
+		recommender.buildItemIndex(numLists);
+		System.out.println(String.format("\nBuilt item index with %d lists in %.1f ms", numLists, (System.nanoTime() - start) / 1e6));
+		
+		int[] users = new int[recommender.getNumUsers()];
+		for( int u=0; u<users.length; ++u ) users[u] = u;
+		int[] numProbes = { 1, 2, 4, 8, 16, numLists };
+		new Evaluator().evaluateItemIndex(recommender, users, Math.min(numRecommendations, recommender.getNumItems()), numProbes);
+	}
+	
+	/**
+	 * The files a model is trained from: the user activity data and the
+	 * name list (if given).
+	 */
+	private static File[] getModelSources(String[] files) {
+		if( files.length > 2 )
+			return new File[] { new File(files[1]), new File(files[2]) };
+		return new File[] { new File(files[1]) };
+	}
+	
+	/**
+	 * Loads the model which was saved by an earlier run for the same data
+	 * and parameters.
+	 * @return The recommender or null if there is no valid model file.
+	 */
+	private static Recommender loadModel(String[] files) {
+		String modelFile = files[1] + MODEL_SUFFIX;
+		try {
+			Recommender model = Recommender.load( modelFile, getModelSources(files), new ParameterSet() );
+			if( model != null )
+				System.out.println("\nUsing model " + modelFile);
+			return model;
+		} catch (IOException e) {
+			System.out.println("Could not read the model " + modelFile + ": " + e.getMessage());
+			return null;
+		}
+	}
+	
+	private static void saveModel(String[] files) {
+		String modelFile = files[1] + MODEL_SUFFIX;
+		try {
+			recommender.save( modelFile, getModelSources(files) );
+		} catch (IOException e) {
+			System.out.println("Could not write the model " + modelFile + ": " + e.getMessage());
+		}
 	}
 	
 	/**
@@ -106,34 +240,92 @@ public class Program {
 	/**
 	 * This method uses the current recommender to create the recommendation
 	 * lists. createRecommender must be called before!
+	 * 
+	 * The lists are computed in batches of OUTPUT_BATCH test users. While one
+	 * batch is written the next one is computed in the background, so at
+	 * most two batches are in memory at any time. The output order is the
+	 * order of the test users.
 	 */
-	private static void outputResults(int numRecommendations) {
+	private static void outputResults(final int numRecommendations) {
+		// Collect the test users first
+		final int[] users = Arrays.copyOf(testUsers.getColumn(0), testUsers.getNumInstances());
+		
+		ExecutorService worker = Executors.newSingleThreadExecutor();
+		Writer file = null;
 		// Create the file for the challenge
 		try {
-			OutputStreamWriter file = new OutputStreamWriter(new FileOutputStream("recommendations_for_test_users.txt"), "UTF-8");
+			OutputStreamWriter encoder = new OutputStreamWriter(new FileOutputStream("recommendations_for_test_users.txt"), "UTF-8");
+			file = new BufferedWriter(encoder, 1 << 16);
 		
 			System.out.println( "\n\nCapturing results");
-			System.out.println( "Writing recommendations_for_test_users.txt: " + file.getEncoding());
-			for(Iterator<int[]> it = testUsers.getMappedIterator(); it.hasNext(); ) {
-				int id = it.next()[0];
-				// Write user (original) id first
-				file.write(userData.getString(0, id));
-				int[] items = recommender.getItemListForUser(id, numRecommendations);
-				for( int i=0; i<items.length; ++i ) {
-					// Write names in a tab separated list
-					String name = userData.getString(2, items[i]);
-					file.write("\t" + name);
+			System.out.println( "Writing recommendations_for_test_users.txt: " + encoder.getEncoding());
+			StringBuilder line = new StringBuilder();
+			Future<int[][]> next = computeBatch(worker, users, 0, numRecommendations);
+			for( int begin=0; begin<users.length; begin+=OUTPUT_BATCH ) {
+				int[][] batch = next.get();
+				// Start the next batch before this one is written
+				if( begin+OUTPUT_BATCH < users.length )
+					next = computeBatch(worker, users, begin+OUTPUT_BATCH, numRecommendations);
+				for( int u=0; u<batch.length; ++u ) {
+					line.setLength(0);
+					// Write user (original) id first
+					line.append(recommender.getUserName(users[begin+u]));
+					int[] items = batch[u];
+					for( int i=0; i<items.length; ++i ) {
+						// Write names in a tab separated list
+						line.append('\t').append(recommender.getItemName(items[i]));
+					}
+					line.append('\n');
+					file.append(line);
 				}
-				file.write("\n");
 			}
 			file.close();
+			file = null;
 			System.out.println( "Finished successfuly");
 
 		} catch (IOException e) {
 			System.out.println("Could not write results to a local file.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Computing the recommendations was interrupted", e);
+		} catch (ExecutionException e) {
+			// The computation of a batch failed
+			Throwable cause = e.getCause();
+			if( cause instanceof RuntimeException ) throw (RuntimeException)cause;
+			if( cause instanceof Error ) throw (Error)cause;
+			throw new IllegalStateException(cause);
+		} finally {
+			worker.shutdown();
+			// Keep the lines written so far after a failure
+			if( file != null ) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					System.out.println("Could not write results to a local file.");
+				}
+			}
 		}
 	}
+	
+	/**
+	 * Starts the computation of the recommendation lists for the test users
+	 * [_begin, _begin+OUTPUT_BATCH).
+	 */
+	private static Future<int[][]> computeBatch(ExecutorService _worker, final int[] _users, final int _begin, final int _numRecommendations) {
+		return _worker.submit(new Callable<int[][]>() {
+			public int[][] call() {
+				int end = Math.min(_begin+OUTPUT_BATCH, _users.length);
+				return recommender.getItemListsForUsers(Arrays.copyOfRange(_users, _begin, end), _numRecommendations);
+			}
+		});
+	}
 
+	// Number of test users per batch in outputResults
+	private static final int OUTPUT_BATCH = 1024;
+	
+	// Extension of the model file which is saved next to the user activity data
+	private static final String MODEL_SUFFIX = ".model";
+	
 	private static Recommender recommender;
 	private static InstanceBase userData;
 	private static InstanceBase testUsers;
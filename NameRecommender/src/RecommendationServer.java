@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Answers recommendation requests of a trained Recommender over HTTP.
+ *
+ *   GET /recommend?user=<name>&k=<num>
+ *     The top k names for the user, separated by tabs (same format as a
+ *     line of the result file without the user). k defaults to DEFAULT_K.
+ *   GET /stats
+ *     Number of requests and p50/p99 latency measured in the server and
+ *     the counters of the cache.
+ *
+ * The lists are kept in a TopKCache of bounded size. The lists of warm users
+ * (see precompute) are computed at start up; all other users are scored on
+ * their first request. Requests are handled by a fixed thread pool.
+ *
+ * Run the JVM with -Dsun.net.httpserver.nodelay=true (Program.serve sets it
+ * if it is missing). Without TCP_NODELAY small responses on kept-alive
+ * connections wait for the delayed ACK of the client (about 40 ms).
+ */
+public class RecommendationServer {
+	public static final int DEFAULT_PORT = 8080;
+	public static final int DEFAULT_K = 1000;
+	public static final long DEFAULT_CACHE_SIZE = 1L << 24;	// Item ids (64 MB)
+
+	private HttpServer m_Server;
+	private ExecutorService m_Executor;
+	private TopKCache m_Cache;
+
+	private LatencyHistogram m_Latency = new LatencyHistogram();
+
+	/**
+	 * Creates the server (it is not started yet).
+	 * @param _port The local port; 0 selects a free one.
+	 * @param _numThreads Number of threads which handle requests.
+	 * @param _cacheSize Maximum number of cached item ids (see TopKCache).
+	 */
+	RecommendationServer( Recommender _recommender, int _port, int _numThreads, long _cacheSize ) throws IOException {
+		m_Cache = new TopKCache( _recommender, _cacheSize );
+		m_Server = HttpServer.create( new InetSocketAddress("localhost", _port), 0 );
+		m_Executor = Executors.newFixedThreadPool( Math.max(_numThreads, 1) );
+		m_Server.setExecutor( m_Executor );
+		m_Server.createContext( "/recommend", new HttpHandler() {
+			public void handle( HttpExchange _exchange ) throws IOException {
+				long start = System.nanoTime();
+				try {
+					handleRecommend( _exchange );
+				} finally {
+					_exchange.close();
+					m_Latency.record( System.nanoTime() - start );
+				}
+			}
+		});
+		m_Server.createContext( "/stats", new HttpHandler() {
+			public void handle( HttpExchange _exchange ) throws IOException {
+				try {
+					send( _exchange, 200, m_Latency.toString() + "\n" + m_Cache.toString() + "\n" );
+				} finally {
+					_exchange.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Computes the top _k lists of the given users in advance. Requests for
+	 * these users with k <= _k are answered from the cache (as long as the
+	 * lists are not evicted).
+	 */
+	public void precompute( int[] _users, int _k ) {
+		m_Cache.warmup( _users, _k );
+	}
+
+	/**
+	 * Serves the requests with a new recommender from now on.
+	 * @param _changedUsers The users whose lists changed (e.g. by a fold-in)
+	 * 	or null if all lists changed.
+	 */
+	public void setRecommender( Recommender _recommender, int[] _changedUsers ) {
+		m_Cache.setRecommender( _recommender, _changedUsers );
+	}
+
+	public void start() {
+		m_Server.start();
+	}
+
+	/**
+	 * Stops the server and waits at most _delay seconds for running requests.
+	 */
+	public void stop( int _delay ) {
+		m_Server.stop( _delay );
+		m_Executor.shutdown();
+	}
+
+	public int getPort() {
+		return m_Server.getAddress().getPort();
+	}
+
+	public LatencyHistogram getLatency() {
+		return m_Latency;
+	}
+
+	public TopKCache getCache() {
+		return m_Cache;
+	}
+
+	/**
+	 * @return The top _k items of a user (must not be changed).
+	 */
+	public int[] recommend( int _user, int _k ) {
+		return m_Cache.get( _user, _k );
+	}
+
+	private void handleRecommend( HttpExchange _exchange ) throws IOException {
+		String user = null;
+		int k = DEFAULT_K;
+		String query = _exchange.getRequestURI().getRawQuery();
+		if( query != null ) {
+			for( String parameter : query.split("&") ) {
+				int eq = parameter.indexOf('=');
+				if( eq < 0 ) continue;
+				String name = parameter.substring(0, eq);
+				String value = decode(parameter.substring(eq+1));
+				if( name.equals("user") )
+					user = value;
+				else if( name.equals("k") ) {
+					try {
+						k = Integer.parseInt(value);
+					} catch (NumberFormatException ex) {
+						k = -1;
+					}
+				}
+			}
+		}
+		if( user == null || k <= 0 ) {
+			send( _exchange, 400, "Usage: /recommend?user=<name>&k=<num>\n" );
+			return;
+		}
+		// The names are stored in lower case (see InstanceBase)
+		Recommender recommender = m_Cache.getRecommender();
+		int id = recommender.getUserId( user.toLowerCase() );
+		if( id < 0 ) {
+			send( _exchange, 404, "Unknown user\n" );
+			return;
+		}
+
+		int[] items = recommend( id, k );
+		StringBuilder response = new StringBuilder( items.length * 12 );
+		for( int i=0; i<items.length; ++i ) {
+			if( i > 0 ) response.append('\t');
+			response.append( recommender.getItemName(items[i]) );
+		}
+		response.append('\n');
+		send( _exchange, 200, response.toString() );
+	}
+
+	private static String decode( String _value ) throws UnsupportedEncodingException {
+		return URLDecoder.decode(_value, "UTF-8");
+	}
+
+	private static void send( HttpExchange _exchange, int _status, String _body ) throws IOException {
+		byte[] bytes = _body.getBytes(LineTokenizer.UTF8);
+		_exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+		_exchange.sendResponseHeaders(_status, bytes.length);
+		OutputStream out = _exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+}
@@ -1,6 +1,15 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Iterator;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
 
 
 public class Recommender {
@@ -14,21 +23,46 @@ public class Recommender {
 	float GAMMA = 0.002f;
 	float LAMBDA = 0.04f;
 	
+	// Step sizes of the SGD for Q, X and Y (see learnFactorizedNeighborhoodModel)
+	private float m_GammaQ;
+	private float m_GammaX;
+	private float m_GammaY;
+	
+	// Number of users/items per parallel task. The blocks do not depend on
+	// the number of threads which keeps the results reproducible.
+	static final int GRAIN = 256;
+	
+	// Tile sizes for scoring many users at once (getItemListsForUsers)
+	static final int USER_BLOCK = 32;
+	static final int ITEM_BLOCK = 256;
+	
 	//float ALPHA = 25;			// Initialization shrinkage
 	//float EPSILON = 0.001f;		// Error on initialization 
 	
 	private SparseFloatMatrix m_WeightTable;
-	private FloatVector m_X[];	// characterize items (2D array: #items * FloatVector(MAX_RANK))
-	private FloatVector m_Y[];	// characterize users based on the items they rated (2D array: #items * FloatVector(MAX_RANK))
-	private FloatVector m_Q[];	// Is the item's influence positive or negative (array: #items). Using m_Q = m_X enforces symmetric weights (see page 177) -> left out
-	private FloatVector m_P[];	// User factors of the fall back method (array: #users)
+	private FactorMatrix m_X;	// characterize items (2D array: #items * MAX_RANK)
+	private FactorMatrix m_Y;	// characterize users based on the items they rated (2D array: #items * MAX_RANK)
+	private FactorMatrix m_Q;	// Is the item's influence positive or negative (array: #items). Using m_Q = m_X enforces symmetric weights (see page 177) -> left out
+	private FactorMatrix m_P;	// User factors of the fall back method (array: #users)
 	float m_AverageRating;		// The average rating over the whole table
-	private float m_Bu[];		// Observed deviations of user u from the average
+	private float m_Bu[];		// Observed deviations of user u from the average (0 for the users added by foldIn, the array may be longer)
 	private float m_Bi[];		// Observed deviations of item i from the average
 	
 	private int m_NumUsers;
 	private int m_NumItems;
 	
+	private ParallelLoop m_Loop;	// Runs the training loops with m_Params.PARALLELISM threads
+	private ItemIndex m_ItemIndex;	// Approximate search over m_Q (optional, see buildItemIndex)
+	private volatile double[] m_QGramian;	// Q^T Q for the ALS fold-in (computed by the first one)
+	
+	// Names of the users and items (optional, see setNames)
+	private StringDictionary m_UserNames;
+	private StringDictionary m_ItemNames;
+	
+	private static final int MODEL_MAGIC = 0x52434d31;	// "RCM1"
+	private static final int MODEL_VERSION = 4;
+	private static final int MAP_CHUNK = 1 << 28;	// Values per mapping of load (1 GB)
+	
 	/**
 	 * Creates a new trained recommender.
 	 * @param _userData The training data.
@@ -37,24 +71,276 @@ public class Recommender {
 	 */
 	public Recommender( SparseFloatMatrix _ratings, ParameterSet _Params ) {
 		m_Params = _Params;
+		m_Loop = new ParallelLoop( m_Params.PARALLELISM );
 		m_WeightTable = _ratings;
 		m_NumUsers = _ratings.getNumRows();
 		m_NumItems = _ratings.getNumColumns();
+		// The training loops work on the CSR arrays directly. The item updates
+		// traverse the columns.
+		m_WeightTable.compress();
+		m_WeightTable.buildColumnIndex();
 		
 		m_AverageRating = 0.0f;
 		
 		// Iterate over the training data and increase the entries for the users
 		// actions.
-		for( int i=0; i<m_NumUsers; ++i ) {
-			for(Iterator<SparseFloatMatrix.IndexValuePair> it = m_WeightTable.getSkipIterator(i); it.hasNext(); ) {
-				SparseFloatMatrix.IndexValuePair e0 = it.next();
-				m_AverageRating += e0.value;
-			}
-		}
+		for( int k=0; k<m_WeightTable.getNumEntries(); ++k )
+			m_AverageRating += m_WeightTable.getValue(k);
 		
 		m_AverageRating /= m_NumItems*m_NumUsers;
-		initializeItemAttributes();
-		//learnFactorizedNeighborhoodModel();
+		if( m_Params.ENGINE == ParameterSet.ENGINE_ALS )
+			trainImplicitALS();
+		else
+			initializeItemAttributes();
+		if( m_Params.SGD_SCHEDULE != ParameterSet.SGD_NONE )
+			learnFactorizedNeighborhoodModel();
+	}
+	
+	/**
+	 * Creates a recommender from a trained model (see load and foldIn).
+	 * @param _loop The threads of the new recommender (shared with the
+	 * 	recommender it was derived from).
+	 */
+	private Recommender( ParameterSet _Params, ParallelLoop _loop, SparseFloatMatrix _ratings, float _averageRating,
+			float[] _Bu, float[] _Bi, FactorMatrix _P, FactorMatrix _Q, FactorMatrix _X, FactorMatrix _Y ) {
+		m_Params = _Params;
+		m_Loop = _loop;
+		m_WeightTable = _ratings;
+		m_NumUsers = _ratings.getNumRows();
+		m_NumItems = _ratings.getNumColumns();
+		m_AverageRating = _averageRating;
+		m_Bu = _Bu;
+		m_Bi = _Bi;
+		m_P = _P;
+		m_Q = _Q;
+		m_X = _X;
+		m_Y = _Y;
+	}
+	
+	/**
+	 * Sets the dictionaries which map the user and item ids to their names.
+	 * They are stored together with the model.
+	 */
+	public void setNames( StringDictionary _users, StringDictionary _items ) {
+		m_UserNames = _users;
+		m_ItemNames = _items;
+	}
+	
+	/**
+	 * Stops the threads of this recommender. Recommenders created from it by
+	 * foldIn share the threads; none of them may be used afterwards.
+	 */
+	public void close() {
+		m_Loop.close();
+	}
+	
+	public int getNumUsers() {
+		return m_NumUsers;
+	}
+	
+	public int getNumItems() {
+		return m_NumItems;
+	}
+	
+	/**
+	 * @return The id of the user with the given name or -1 if it is unknown
+	 * 	(or no names are set).
+	 */
+	public int getUserId( String _name ) {
+		return m_UserNames == null ? -1 : m_UserNames.get(_name);
+	}
+	
+	public String getUserName( int _user ) {
+		return m_UserNames.getString(_user);
+	}
+	
+	public String getItemName( int _item ) {
+		return m_ItemNames.getString(_item);
+	}
+	
+	/**
+	 * Writes the trained model to a binary file: a header with the sizes and
+	 * modification times of _Sources (the files the model was trained from),
+	 * the parameters, the rating matrix (CSR), the baseline predictors, the
+	 * factor matrices P, Q, X, Y and the names (if set). All values are big
+	 * endian. The file is written to a temporary file and renamed afterwards.
+	 */
+	public void save( String _File, File[] _Sources ) throws IOException {
+		File file = new File(_File);
+		File temp = new File(_File + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+		try {
+			out.writeInt(MODEL_MAGIC);
+			out.writeInt(MODEL_VERSION);
+			out.writeInt(_Sources.length);
+			for( File source : _Sources ) {
+				out.writeLong(source.length());
+				out.writeLong(source.lastModified());
+			}
+			m_Params.write(out);
+			
+			out.writeInt(m_NumUsers);
+			out.writeInt(m_NumItems);
+			out.writeInt(m_WeightTable.getNumEntries());
+			out.writeFloat(m_AverageRating);
+			// The rows replaced by foldIn are not stored in the CSR arrays
+			int rowBegin = 0;
+			for( int u=0; u<=m_NumUsers; ++u ) {
+				out.writeInt(rowBegin);
+				if( u < m_NumUsers )
+					rowBegin += m_WeightTable.getNumEntriesInRow(u);
+			}
+			for( int u=0; u<m_NumUsers; ++u ) {
+				int[] columns = m_WeightTable.getColumnIndices(u);
+				for( int k=m_WeightTable.getRowBegin(u); k<m_WeightTable.getRowEnd(u); ++k )
+					out.writeInt(columns[k]);
+			}
+			for( int u=0; u<m_NumUsers; ++u ) {
+				float[] values = m_WeightTable.getValues(u);
+				for( int k=m_WeightTable.getRowBegin(u); k<m_WeightTable.getRowEnd(u); ++k )
+					out.writeFloat(values[k]);
+			}
+			writeFloats(out, Arrays.copyOf(m_Bu, m_NumUsers));
+			writeFloats(out, m_Bi);
+			writeRows(out, m_P);
+			writeRows(out, m_Q);
+			writeRows(out, m_X);
+			writeRows(out, m_Y);
+			
+			out.writeBoolean(m_UserNames != null && m_ItemNames != null);
+			if( m_UserNames != null && m_ItemNames != null ) {
+				m_UserNames.write(out);
+				m_ItemNames.write(out);
+			}
+		} finally {
+			out.close();
+		}
+		if( file.exists() && !file.delete() )
+			throw new IOException("Cannot replace " + _File);
+		if( !temp.renameTo(file) )
+			throw new IOException("Cannot rename " + temp.getPath());
+	}
+	
+	private static void writeFloats( DataOutputStream _out, float[] _values ) throws IOException {
+		for( float v : _values )
+			_out.writeFloat(v);
+	}
+	
+	private static void writeRows( DataOutputStream _out, FactorMatrix _matrix ) throws IOException {
+		float[] row = new float[_matrix.getRank()];
+		for( int r=0; r<_matrix.getNumRows(); ++r ) {
+			_matrix.copyRow(r, row, 0);
+			writeFloats(_out, row);
+		}
+	}
+	
+	/**
+	 * Loads a model written by save. The file is memory mapped. The rating
+	 * matrix and the baseline predictors are copied from the mapping in
+	 * bulk, the factor blocks are not copied: P, Q, X and Y read from the
+	 * mapping (see FactorMatrix.map). So loading does not depend on their
+	 * size and processes which load the same file share their memory
+	 * through the page cache. save replaces the file by a new one, so this
+	 * does not change the mapping of a loaded model. Files larger than
+	 * 2 GB are mapped in several regions.
+	 * @param _Sources The files the model should have been trained from. They
+	 * 	must not have changed since the model was saved.
+	 * @param _Params The current parameters. The model must have been
+	 * 	trained with the same ones (PARALLELISM may differ).
+	 * @return The recommender or null if the file does not exist, is stale
+	 * 	or is corrupt.
+	 */
+	public static Recommender load( String _File, File[] _Sources, ParameterSet _Params ) throws IOException {
+		File file = new File(_File);
+		if( !file.isFile() ) return null;
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = input.getChannel();
+			long size = channel.size();
+			// A mapping is limited to 2 GB, the header is at the beginning
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+			if( buffer.getInt() != MODEL_MAGIC || buffer.getInt() != MODEL_VERSION
+					|| buffer.getInt() != _Sources.length )
+				return null;
+			for( File source : _Sources ) {
+				if( buffer.getLong() != source.length() || buffer.getLong() != source.lastModified() )
+					return null;
+			}
+			if( !ParameterSet.read(buffer).isSameModel(_Params) )
+				return null;
+			
+			int numUsers = buffer.getInt();
+			int numItems = buffer.getInt();
+			int numEntries = buffer.getInt();
+			float averageRating = buffer.getFloat();
+			int rank = _Params.MAX_RANK;
+			if( numUsers < 0 || numItems < 0 || numEntries < 0 )
+				return null;	// Corrupt file
+			// Positions of the blocks, the file may be larger than 2 GB
+			long rowPtrPosition = buffer.position();
+			long colIdxPosition = rowPtrPosition + 4L * (numUsers + 1);
+			long valuesPosition = colIdxPosition + 4L * numEntries;
+			long BuPosition = valuesPosition + 4L * numEntries;
+			long BiPosition = BuPosition + 4L * numUsers;
+			long PPosition = BiPosition + 4L * numItems;
+			long QPosition = PPosition + 4L * numUsers * rank;
+			long XPosition = QPosition + 4L * numItems * rank;
+			long YPosition = XPosition + 4L * numItems * rank;
+			long namesPosition = YPosition + 4L * numItems * rank;
+			if( namesPosition >= size )
+				return null;	// Truncated file
+			
+			int[] rowPtr = readInts(channel, rowPtrPosition, numUsers + 1);
+			int[] colIdx = readInts(channel, colIdxPosition, numEntries);
+			SparseFloatMatrix ratings = new SparseFloatMatrix(numUsers, numItems, rowPtr, colIdx, readFloats(channel, valuesPosition, numEntries));
+			float[] Bu = readFloats(channel, BuPosition, numUsers);
+			float[] Bi = readFloats(channel, BiPosition, numItems);
+			FactorMatrix P = FactorMatrix.map(channel, PPosition, numUsers, rank);
+			FactorMatrix Q = FactorMatrix.map(channel, QPosition, numItems, rank);
+			FactorMatrix X = FactorMatrix.map(channel, XPosition, numItems, rank);
+			FactorMatrix Y = FactorMatrix.map(channel, YPosition, numItems, rank);
+			Recommender recommender = new Recommender(_Params, new ParallelLoop(_Params.PARALLELISM), ratings, averageRating, Bu, Bi, P, Q, X, Y);
+			
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, namesPosition, Math.min(size - namesPosition, Integer.MAX_VALUE));
+			if( buffer.get() != 0 )
+				recommender.setNames(StringDictionary.read(buffer), StringDictionary.read(buffer));
+			return recommender;
+		} catch (BufferUnderflowException ex) {
+			return null;	// Truncated file
+		} catch (IllegalArgumentException ex) {
+			return null;	// Corrupt file
+		} catch (IndexOutOfBoundsException ex) {
+			return null;	// Corrupt file
+		} catch (NegativeArraySizeException ex) {
+			return null;	// Corrupt file
+		} finally {
+			input.close();
+		}
+	}
+	
+	/**
+	 * Reads _num ints at _position of a model file. The file is mapped in
+	 * regions of at most MAP_CHUNK values.
+	 */
+	private static int[] readInts( FileChannel _channel, long _position, int _num ) throws IOException {
+		int[] values = new int[_num];
+		for( int i=0; i<_num; i+=MAP_CHUNK ) {
+			int num = Math.min(MAP_CHUNK, _num - i);
+			_channel.map(FileChannel.MapMode.READ_ONLY, _position + 4L * i, 4L * num).asIntBuffer().get(values, i, num);
+		}
+		return values;
+	}
+	
+	/**
+	 * Reads _num floats at _position of a model file (see readInts).
+	 */
+	private static float[] readFloats( FileChannel _channel, long _position, int _num ) throws IOException {
+		float[] values = new float[_num];
+		for( int i=0; i<_num; i+=MAP_CHUNK ) {
+			int num = Math.min(MAP_CHUNK, _num - i);
+			_channel.map(FileChannel.MapMode.READ_ONLY, _position + 4L * i, 4L * num).asFloatBuffer().get(values, i, num);
+		}
+		return values;
 	}
 	
 	/**
@@ -65,19 +351,94 @@ public class Recommender {
 	 */
 	public int[] getItemListForUser(int _user, int _num) {
 		assert(_num <= m_NumItems);
-		// Compute recommendation values for each item (use index value pairs to sort indices after value)
-		SparseFloatMatrix.IndexValuePair[] items = new SparseFloatMatrix.IndexValuePair[m_WeightTable.getNumColumns()]; 
-		for( int i=0; i<m_NumItems; ++i ) {
-			items[i] = new SparseFloatMatrix.IndexValuePair(i,0.0f);
-			// Only use items the user had not interacted before.
-			if(m_WeightTable.get(_user, i) == 0.0f)
-				items[i].value = getPrediction(_user, i);
+		// Compute recommendation values for each item and keep the best _num
+		TopKSelector items = new TopKSelector(_num);
+		scoreItems(_user, 0, m_NumItems, m_WeightTable.getRowBegin(_user), items);
+		return items.getSortedItems();
+	}
+	
+	/**
+	 * Builds an index over the item factors for getItemListForUser with a
+	 * number of probes. The index has to be built again if m_Q changes.
+	 * @param _numLists The number of lists of the index (see ItemIndex).
+	 */
+	public void buildItemIndex(int _numLists) {
+		m_ItemIndex = new ItemIndex(m_Q, _numLists, 10, 1, m_Loop);
+	}
+	
+	/**
+	 * Approximate version of getItemListForUser which scores only the items
+	 * of the _numProbes best lists of the item index. The values are the
+	 * same as for the exact version, but items outside of these lists are
+	 * missing. Without an index the exact list is returned.
+	 */
+	public int[] getItemListForUser(int _user, int _num, int _numProbes) {
+		if( m_ItemIndex == null )
+			return getItemListForUser(_user, _num);
+		TopKSelector items = new TopKSelector(_num);
+		float[] query = new float[m_P.getRank()];
+		m_P.copyRow(_user, query, 0);
+		m_ItemIndex.search(query, 0, _numProbes, items, m_WeightTable, _user);
+		return items.getSortedItems();
+	}
+	
+	/**
+	 * Computes the recommendation lists for many users at once. The result is
+	 * the same as calling getItemListForUser for each of them.
+	 * 
+	 * The users are processed in blocks of USER_BLOCK users (in parallel) and
+	 * each block walks the items in tiles of ITEM_BLOCK items. A tile of item
+	 * factors is loaded once and used for all users of the block.
+	 * @param _users The users for which the recommendation lists should be
+	 * 	created.
+	 * @param _num Number of items to recommend per user.
+	 * @return For each user an array with item IDs of length _num
+	 */
+	public int[][] getItemListsForUsers(final int[] _users, final int _num) {
+		assert(_num <= m_NumItems);
+		final int[][] result = new int[_users.length][];
+		m_Loop.forRange( _users.length, USER_BLOCK, new ParallelLoop.Body() {
+			public void run( int _begin, int _end ) {
+				int n = _end - _begin;
+				TopKSelector[] items = new TopKSelector[n];
+				int[] rowPos = new int[n];	// Current position in the row of each user
+				for( int j=0; j<n; ++j ) {
+					items[j] = new TopKSelector(_num);
+					rowPos[j] = m_WeightTable.getRowBegin(_users[_begin+j]);
+				}
+				for( int i0=0; i0<m_NumItems; i0+=ITEM_BLOCK ) {
+					int i1 = Math.min(i0+ITEM_BLOCK, m_NumItems);
+					for( int j=0; j<n; ++j )
+						rowPos[j] = scoreItems(_users[_begin+j], i0, i1, rowPos[j], items[j]);
+				}
+				for( int j=0; j<n; ++j )
+					result[_begin+j] = items[j].getSortedItems();
+			}
+		});
+		return result;
+	}
+	
+	/**
+	 * Offers the items [_from, _to) with their predictions to _items.
+	 * @param _rowPos Position in the CSR row of the user which belongs to the
+	 * 	first item >= _from. The row is sorted by item, so the items the user
+	 * 	had interacted with before are found by walking along it.
+	 * @return The position in the row which belongs to the first item >= _to.
+	 */
+	private int scoreItems( int _user, int _from, int _to, int _rowPos, TopKSelector _items ) {
+		int[] seen = m_WeightTable.getColumnIndices(_user);
+		int k = _rowPos;
+		int end = m_WeightTable.getRowEnd(_user);
+		for( int i=_from; i<_to; ++i ) {
+			// Only use items the user had not interacted before (they get a
+			// value of 0).
+			if( k < end && seen[k] == i ) {
+				_items.offer(i, 0.0f);
+				++k;
+			} else
+				_items.offer(i, getPrediction(_user, i));
 		}
-		java.util.Arrays.sort(items);
-		int[] topItems = new int[_num];
-		for( int i=0; i<_num; ++i )
-			topItems[i] = items[i].index;
-		return topItems;
+		return k;
 	}
 	
 
@@ -100,89 +461,243 @@ public class Recommender {
 	 * r^_ui = P dot Q
 	 * This measurement is only required for initialization of the latent
 	 * factor space. Later on r^_ui consists of more factors.
+	 * Only the f-th column is not yet part of the predictions, so the error
+	 * is sum (r_ui - (prediction_ui + P_uf*Q_if)) which takes O(nnz).
+	 * @param _predictions P_u dot Q_i of the previous factors (one per entry
+	 * 	of the weight table).
+	 * @param _P_f The f-th column of P.
+	 * @param _Q_f The f-th column of Q.
 	 * @return Rating error of matrices Q and P.
 	 */
-	private float squaredError()
+	private float squaredError( final float[] _predictions, final float[] _P_f, final float[] _Q_f )
 	{
-		float res = 0;
-		for( int u=0; u<m_NumUsers; ++u ) {
-			for( Iterator<SparseFloatMatrix.IndexValuePair> it = m_WeightTable.getSkipIterator(u); it.hasNext(); ) {
-				SparseFloatMatrix.IndexValuePair entry = it.next();
-				float ratingError = entry.value - m_P[u].dot(m_Q[entry.index]);
-				res += ratingError * ratingError;
+		return m_Loop.sum( m_NumUsers, GRAIN, new ParallelLoop.Reduction() {
+			public float run( int _begin, int _end ) {
+				float res = 0;
+				for( int u=_begin; u<_end; ++u ) {
+					for( int k=m_WeightTable.getRowBegin(u); k<m_WeightTable.getRowEnd(u); ++k ) {
+						float prediction = _predictions[k] + _P_f[u] * _Q_f[m_WeightTable.getColumnIndex(k)];
+						float ratingError = m_WeightTable.getValue(k) - prediction;
+						res += ratingError * ratingError;
+					}
+				}
+				return res;
 			}
+		});
+	}
+	
+	/**
+	 * Shrinks the residual of a rating for the f-th factor. Ratings with a
+	 * small support are shrunk more and the later factors more than the
+	 * first ones.
+	 * @param _support The support of the rating (see support).
+	 */
+	private float shrink( float _residual, int _support, int f ) {
+		float n_ui = _support;
+		return n_ui*_residual / (n_ui+m_Params.SHRINKAGE * f);
+	}
+	
+	/**
+	 * The least squares step of the f-th factor of one user for the shrunk
+	 * residuals r'_ui of the user's ratings:
+	 *   SUM_i r'_ui Q_if / SUM_i Q_if
+	 * @param _residuals, _columns The residuals and the indices i for Q_f of
+	 * 	the user's ratings at [_begin, _end).
+	 * @param _Q_f Q_if by the index i.
+	 */
+	private static float leastSquaresStep( float[] _residuals, int[] _columns, int _begin, int _end, float[] _Q_f ) {
+		float newFactorNum = 0;
+		float newFactorDen = 0;
+		for( int k=_begin; k<_end; ++k ) {
+			float Q_if = _Q_f[_columns[k]];
+			newFactorNum += _residuals[k] * Q_if;
+			newFactorDen += Q_if * Q_if;
 		}
-		return res;
+		return newFactorNum/Math.max(newFactorDen, 0.00000001f);
 	}
 	
 	/**
 	 * Compute the f-th column of matrices Q,X and Y. Columns 1 to 1-f are
 	 * already computed.
 	 * @param f
+	 * @param _predictions P_u dot Q_i of the columns 0 to f-1 (one per entry
+	 * 	of the weight table). The f-th column is added at the end. The
+	 * 	products are added in the same order as by a dot product, so
+	 * 	r_ui - prediction is the same as with P_u dot Q_i (subtracting the
+	 * 	products from r_ui one by one rounds differently).
+	 * @param _ratingErrors Storage for the shrunk residuals (same structure
+	 * 	as the weight table). It is overwritten.
 	 */
-	private void computeNextFactor( int f )
+	private void computeNextFactor( final int f, final float[] _predictions, final SparseFloatMatrix _ratingErrors )
 	{
 		// Compute residuals-portion not explained by previous factors.
-		SparseFloatMatrix ratingErrors = new SparseFloatMatrix(m_NumUsers, m_NumItems);
 		// For each known rating
-		for( int u=0; u<m_NumUsers; ++u ) {
-			for( SparseFloatMatrix.IndexValuePair entry : m_WeightTable.getRow(u) ) {
-				int i = entry.index;
-				// Dot product of P_i and Q_j with respect to the computed part
-				// only (which is easy, because everything else is 0.
-				float ratingError = entry.value - m_P[u].dot(m_Q[i]);
-				// Shrinkage
-				float n_ui = support(u,i);
-				ratingError = n_ui*ratingError / (n_ui+m_Params.SHRINKAGE * f);
-				ratingErrors.set(u, i, ratingError);
+		m_Loop.forRange( m_NumUsers, GRAIN, new ParallelLoop.Body() {
+			public void run( int _begin, int _end ) {
+				for( int u=_begin; u<_end; ++u ) {
+					for( int k=m_WeightTable.getRowBegin(u); k<m_WeightTable.getRowEnd(u); ++k ) {
+						int i = m_WeightTable.getColumnIndex(k);
+						_ratingErrors.setValue(k, shrink(m_WeightTable.getValue(k) - _predictions[k], support(u,i), f));
+					}
+				}
 			}
-		}
+		});
+		
+		// Only the f-th column changes below. Work on contiguous copies of it
+		// and write them back before the error is computed.
+		final float[] P_f = new float[m_NumUsers];
+		final float[] Q_f = new float[m_NumItems];
+		m_P.getColumn( f, P_f );
 		
 		// Solving many least square problems
 		// THE WHILE LOOP IN [NetflixKDD07] HAS AN SENSLESS CONDITION?
-		float errOld = squaredError();
+		float errOld = squaredError( _predictions, P_f, Q_f );
 		float errNew = 0;
 		// Set something else than 0 (otherwise endless loop)
-		for( int i=0; i<m_NumItems; ++i )
-			m_Q[i].set( f, 1.0f );
+		m_Q.fillColumn( f, 1.0f );
+		m_Q.getColumn( f, Q_f );
 		while( errNew/errOld < 1-m_Params.EPSILON ) {
-			// For each user
-			for( int u=0; u<m_NumUsers; ++u ) {
-				float newFactorNum = 0;
-				float newFactorDen = 0;
-				for( SparseFloatMatrix.IndexValuePair entry : ratingErrors.getRow(u) ) {
-					float Q_if = m_Q[entry.index].get(f);
-					newFactorNum += entry.value * Q_if;
-					newFactorDen += Q_if * Q_if;
+			// For each user (each m_P[u] depends on m_Q only)
+			m_Loop.forRange( m_NumUsers, GRAIN, new ParallelLoop.Body() {
+				public void run( int _begin, int _end ) {
+					for( int u=_begin; u<_end; ++u ) {
+						P_f[u] += leastSquaresStep( _ratingErrors.getValues(u), _ratingErrors.getColumnIndices(u),
+								_ratingErrors.getRowBegin(u), _ratingErrors.getRowEnd(u), Q_f );
+					}
 				}
-				m_P[u].set( f, m_P[u].get(f) + newFactorNum/Math.max(newFactorDen, 0.00000001f) );
-			}
-			// for each item
-			float[] newFactorDen = new float[m_NumItems];	// Save numerator and denominator here to accumulate for all items in parallel
-			float[] newFactorNum = new float[m_NumItems];
-			for( int u=0; u<m_NumUsers; ++u ) {
-				for( SparseFloatMatrix.IndexValuePair entry : ratingErrors.getRow(u) ) {
-					float P_uf = m_P[u].get(f);
-					newFactorNum[entry.index] += entry.value * P_uf;
-					newFactorDen[entry.index] += P_uf * P_uf;
+			});
+			// for each item (gather along the column, each m_Q[i] depends on m_P only)
+			m_Loop.forRange( m_NumItems, GRAIN, new ParallelLoop.Body() {
+				public void run( int _begin, int _end ) {
+					for( int i=_begin; i<_end; ++i ) {
+						float newFactorNum = 0;
+						float newFactorDen = 0;
+						for( int kc=_ratingErrors.getColumnBegin(i); kc<_ratingErrors.getColumnEnd(i); ++kc ) {
+							float P_uf = P_f[_ratingErrors.getRowIndex(kc)];
+							newFactorNum += _ratingErrors.getValue(_ratingErrors.getEntry(kc)) * P_uf;
+							newFactorDen += P_uf * P_uf;
+						}
+						Q_f[i] += newFactorNum/Math.max(newFactorDen,0.00000001f);
+					}
 				}
-			}
-			for( int i=0; i<m_NumItems; ++i )
-				m_Q[i].set( f, m_Q[i].get(f) + newFactorNum[i]/Math.max(newFactorDen[i],0.00000001f) );
+			});
+			
+			m_P.setColumn( f, P_f );
+			m_Q.setColumn( f, Q_f );
 			
 			errOld = errNew; 
-			errNew = squaredError();
+			errNew = squaredError( _predictions, P_f, Q_f );
 		}
+		
+		// Rank-1 update: the predictions for the next factor
+		m_Loop.forRange( m_NumUsers, GRAIN, new ParallelLoop.Body() {
+			public void run( int _begin, int _end ) {
+				for( int u=_begin; u<_end; ++u ) {
+					for( int k=m_WeightTable.getRowBegin(u); k<m_WeightTable.getRowEnd(u); ++k )
+						_predictions[k] += P_f[u] * Q_f[m_WeightTable.getColumnIndex(k)];
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Creates a recommender which knows new activity of one user without a
+	 * retraining. Only the factors of this user are computed (fold-in):
+	 * the item factors Q stay fixed and each factor f is the least squares
+	 * step of computeNextFactor for the shrunk residuals which are not
+	 * explained by the factors before:
+	 *   P_uf = SUM_i r'_ui Q_if / SUM_i Q_if
+	 * A model trained with ENGINE_ALS solves the user's ALS system instead.
+	 * 
+	 * This recommender is not changed (copy on write). The new one shares
+	 * the item factors, the item index and the threads (see close) with it.
+	 * The activity and the factors of the other users are shared too (see
+	 * SparseFloatMatrix.replaceRow and FactorMatrix.replaceRow), so the
+	 * costs of a fold-in do not depend on the number of users or ratings.
+	 * @param _user The user or getNumUsers() for a new user.
+	 * @param _items The items of the complete new activity row of the user.
+	 * @param _values The weight of each entry of _items. Entries of the same
+	 * 	item are summed.
+	 * @return The updated recommender.
+	 */
+	public Recommender foldIn( int _user, int[] _items, float[] _values ) {
+		if( _user < 0 || _user > m_NumUsers || _items.length != _values.length ) throw new IllegalArgumentException();
+		SparseFloatMatrixBuilder rowBuilder = new SparseFloatMatrixBuilder(1, m_NumItems, _items.length);
+		for( int k=0; k<_items.length; ++k )
+			rowBuilder.add(0, _items[k], _values[k]);
+		SparseFloatMatrix ratings = m_WeightTable.replaceRow( _user, rowBuilder.build() );
+		
+		int numUsers = ratings.getNumRows();
+		int rank = m_Params.MAX_RANK;
+		float[] P_u = new float[rank];
+		if( m_Params.ENGINE == ParameterSet.ENGINE_ALS ) {
+			// Same solve as for the users during the training
+			ImplicitALS als = new ImplicitALS( ratings, rank, m_Params.ALS_ALPHA, m_Params.ALS_LAMBDA, m_Loop );
+			if( m_QGramian == null )
+				m_QGramian = als.gramian( m_Q );
+			als.solveUser( _user, P_u, m_Q, m_QGramian );
+		} else {
+			int[] columns = ratings.getColumnIndices(_user);
+			float[] values = ratings.getValues(_user);
+			int begin = ratings.getRowBegin(_user);
+			int n = ratings.getRowEnd(_user) - begin;
+			// The ratings of the user are numbered 0..n-1 for
+			// leastSquaresStep: residuals[k] and Q_f[k] belong to the item
+			// columns[begin+k].
+			int[] index = new int[n];
+			for( int k=0; k<n; ++k )
+				index[k] = k;
+			float[] predictions = new float[n];	// P_u dot Q_i of the factors so far
+			float[] residuals = new float[n];
+			float[] Q_f = new float[n];
+			for( int f=0; f<rank; ++f ) {
+				for( int k=0; k<n; ++k ) {
+					int i = columns[begin+k];
+					residuals[k] = shrink( values[begin+k] - predictions[k], Math.min(n, ratings.getNumEntriesInColumn(i)), f );
+					Q_f[k] = m_Q.get(i, f);
+				}
+				P_u[f] = leastSquaresStep( residuals, index, 0, n, Q_f );
+				for( int k=0; k<n; ++k )
+					predictions[k] += P_u[f] * Q_f[k];
+			}
+		}
+		
+		// The users added by foldIn have a baseline predictor of 0. The
+		// array grows by doubling and is shared otherwise.
+		float[] Bu = numUsers <= m_Bu.length ? m_Bu : Arrays.copyOf(m_Bu, Math.max(numUsers, 2 * m_Bu.length));
+		Recommender result = new Recommender( m_Params, m_Loop, ratings, m_AverageRating,
+				Bu, m_Bi, m_P.replaceRow(_user, P_u), m_Q, m_X, m_Y );
+		result.setNames( m_UserNames, m_ItemNames );
+		result.m_ItemIndex = m_ItemIndex;	// Still valid, Q is the same
+		result.m_QGramian = m_QGramian;
+		return result;
+	}
+	
+	/**
+	 * Same as foldIn(int, ...) for a user given by name. Unknown users are
+	 * added (the names of this recommender are not changed).
+	 */
+	public Recommender foldIn( String _name, int[] _items, float[] _values ) {
+		int user = getUserId(_name);
+		if( user != -1 )
+			return foldIn( user, _items, _values );
+		if( m_UserNames == null || m_UserNames.size() != m_NumUsers ) throw new IllegalStateException("No user names");
+		Recommender result = foldIn( m_NumUsers, _items, _values );
+		StringDictionary userNames = new StringDictionary(m_UserNames);
+		userNames.getOrAdd(_name);
+		result.setNames( userNames, m_ItemNames );
+		return result;
 	}
 	
 	/**
 	 * Once m_P and m_Q are computed derive an initial state of m_X and m_Y.
+	 * Package-private for AllocationCheck (the training does not call it).
 	 */
-	private void deriveXAndY() {
+	void deriveXAndY() {
 		// Use symmetric case m_Q = m_X as initial state -> copy
 		for( int i=0; i<m_NumItems; ++i )
 			for( int f=0; f<m_Params.MAX_RANK; ++f )
-				m_X[i].set(f, m_Q[i].get(f));
+				m_X.set(i, f, m_Q.get(i, f));
 		// P_u = |R(u)|^-0.5 SUM iR(u) [(r_uj-b_uj)*x_i+y_i]
 		//	   = |R(u)|^-0.5 SUM iR(u) [(r_uj-b_uj)*x_i] + SUM iR(u) [y_i]
 		// SUM iR(u) [y_i] = P_u - |R(u)|^-0.5 SUM iR(u) [(r_uj-b_uj)*x_i]
@@ -190,47 +705,66 @@ public class Recommender {
 		// To get a rough estimate use "inverse Radon transformation"
 		// y_i += (P_u - |R(u)|^-0.5 SUM iR(u) [(r_uj-b_uj)*x_i])/n			(1)
 		int[] n = new int[m_NumItems];
+		// Temporary vector and row views are reused for all users
+		FloatVector p = new FloatVector(m_Params.MAX_RANK);
+		FloatVector x_j = m_X.getRow(0);
+		FloatVector y_j = m_Y.getRow(0);
+		FloatVector p_u = m_P.getRow(0);
 		for( int u=0; u<m_NumUsers; ++u ) {
 			float norm = (float)(1.0/(m_WeightTable.getNumEntriesInRow(u)*Math.sqrt(m_WeightTable.getNumEntriesInRow(u))));
-			FloatVector p = new FloatVector(m_Params.MAX_RANK);
-			for( SparseFloatMatrix.IndexValuePair entry : m_WeightTable.getRow(u) ) {
-				float b_uj = computeBaselinePredictor(u, entry.index);
-				p.add( FloatVector.mul((entry.value-b_uj)*norm, m_X[entry.index] ) );
+			p.zero();
+			for( int k=m_WeightTable.getRowBegin(u); k<m_WeightTable.getRowEnd(u); ++k ) {
+				int j = m_WeightTable.getColumnIndex(k);
+				float b_uj = computeBaselinePredictor(u, j);
+				p.axpyInPlace( (m_WeightTable.getValue(k)-b_uj)*norm, m_X.getRow(j, x_j) );
 			}
-			p = FloatVector.mad( -1.0f, m_P[u], p );	// == - right side of (1)
-			for( SparseFloatMatrix.IndexValuePair entry : m_WeightTable.getRow(u) ) {
-				++n[entry.index];
-				m_Y[entry.index].sub(p);	// -= -right side   ==   += right side
+			p.scaleAdd( -1.0f, m_P.getRow(u, p_u), 1.0f, p );	// == - right side of (1)
+			for( int k=m_WeightTable.getRowBegin(u); k<m_WeightTable.getRowEnd(u); ++k ) {
+				int j = m_WeightTable.getColumnIndex(k);
+				++n[j];
+				m_Y.getRow(j, y_j).sub(p);	// -= -right side   ==   += right side
 			}
 		}
 		// Normalize
 		for( int i=0; i<m_NumItems; ++i )
-			m_Y[i].mul(1.0f/n[i]);
+			m_Y.getRow(i, y_j).mul(1.0f/n[i]);
 	}
 	
-	private void initializeItemAttributes() {
+	private void createFactorMatrices() {
 		m_Bu = new float[m_NumUsers];
 		m_Bi = new float[m_NumItems];
 
 		// Initialization of the two matrices x,y means to fill them with zero
-		m_X = new FloatVector[m_NumItems];
-		m_Y = new FloatVector[m_NumItems];
-		m_Q = new FloatVector[m_NumItems];
-		for( int i=0; i<m_NumItems; ++i ) {
-			m_X[i] = new FloatVector(m_Params.MAX_RANK);
-			m_Y[i] = new FloatVector(m_Params.MAX_RANK);
-			m_Q[i] = new FloatVector(m_Params.MAX_RANK);
-		}
-		m_P = new FloatVector[m_NumUsers];
-		for( int i=0; i<m_NumUsers; ++i )
-			m_P[i] = new FloatVector(m_Params.MAX_RANK);
+		m_X = new FactorMatrix(m_NumItems, m_Params.MAX_RANK);
+		m_Y = new FactorMatrix(m_NumItems, m_Params.MAX_RANK);
+		m_Q = new FactorMatrix(m_NumItems, m_Params.MAX_RANK);
+		m_P = new FactorMatrix(m_NumUsers, m_Params.MAX_RANK);
+	}
+	
+	private void initializeItemAttributes() {
+		createFactorMatrices();
 		
-		// Fill vectors with latent factors
+		// Fill vectors with latent factors. The predictions of the factors so
+		// far and the errors are kept per entry of the weight table and are
+		// reused for all factors.
+		float[] predictions = new float[m_WeightTable.getNumEntries()];
+		SparseFloatMatrix ratingErrors = new SparseFloatMatrix(m_WeightTable);
 		for( int i=0; i<m_Params.MAX_RANK; ++i )
-			computeNextFactor( i );
+			computeNextFactor( i, predictions, ratingErrors );
 		//deriveXAndY();
 	}
 	
+	/**
+	 * Alternative to initializeItemAttributes: trains all factors of P and Q
+	 * with implicit feedback ALS (see ImplicitALS). The baseline predictors,
+	 * X and Y stay 0.
+	 */
+	private void trainImplicitALS() {
+		createFactorMatrices();
+		ImplicitALS als = new ImplicitALS( m_WeightTable, m_Params.MAX_RANK, m_Params.ALS_ALPHA, m_Params.ALS_LAMBDA, m_Loop );
+		als.train( m_P, m_Q, m_Params.ALS_ITERATIONS, 1 );
+	}
+	
 	/**
 	 * Compute baseline predictors b_ui.
 	 * @param _user The user which's items are of interest.
@@ -241,43 +775,274 @@ public class Recommender {
 		return m_Bu[_user] + m_Bi[_item] + m_AverageRating;
 	}
 
+	/**
+	 * Temporary vectors and row views of one SGD worker. They are reused for
+	 * all users of the worker, so the updates do not allocate anything.
+	 */
+	private class SgdWorkspace {
+		FloatVector sum = new FloatVector(m_Params.MAX_RANK);
+		FloatVector p = new FloatVector(m_Params.MAX_RANK);
+		FloatVector x_j = m_X.getRow(0);
+		FloatVector y_j = m_Y.getRow(0);
+		FloatVector q_j = m_Q.getRow(0);
+	}
+	
+	/**
+	 * The SGD_DSGD schedule (stratified SGD, Gemulla et al.: "Large-Scale
+	 * Matrix Factorization with Distributed Stochastic Gradient Descent",
+	 * 2011).
+	 * 
+	 * The users and the items are split into B = PARALLELISM blocks each
+	 * with about the same number of ratings. The items are assigned once at
+	 * random, the users in every epoch (ranges of the shuffled order). An
+	 * epoch has three steps:
+	 * 1. p_u of all users from X and Y (in parallel over the users).
+	 * 2. B strata. In stratum s the blocks (b, (b+s) mod B) run in
+	 *    parallel and update q_i, b_u, b_i and the error sum of the user for
+	 *    their ratings. The blocks of a stratum have no common users or
+	 *    items, so no update is lost.
+	 * 3. x_j and y_j of all items with the error sums of their users (in
+	 *    parallel over the items).
+	 * Different from SGD_SEQUENTIAL, X and Y change only once per epoch.
+	 * The result depends on PARALLELISM (B), but not on the timing of the
+	 * threads.
+	 */
+	private class SgdStrata {
+		private int m_NumBlocks;
+		private int[] m_ItemBlock;
+		private int[] m_UserBlockBegin;		// User block b is order[m_UserBlockBegin[b], m_UserBlockBegin[b+1])
+		private FactorMatrix m_UserVectors;	// p_u of the epoch
+		private FactorMatrix m_ErrorSums;	// SUM i in R(u) e_ui * q_i of the epoch
+		
+		SgdStrata( int _numBlocks, Random _random ) {
+			m_NumBlocks = Math.max(_numBlocks, 1);
+			int[] items = new int[m_NumItems];
+			for( int i=0; i<m_NumItems; ++i )
+				items[i] = i;
+			for( int k=m_NumItems-1; k>0; --k ) {
+				int l = _random.nextInt(k+1);
+				int t = items[k]; items[k] = items[l]; items[l] = t;
+			}
+			m_ItemBlock = new int[m_NumItems];
+			long numEntries = Math.max(m_WeightTable.getNumEntries(), 1);
+			long count = 0;
+			for( int i : items ) {
+				m_ItemBlock[i] = (int)(count * m_NumBlocks / numEntries);
+				count += m_WeightTable.getNumEntriesInColumn(i);
+			}
+			m_UserBlockBegin = new int[m_NumBlocks+1];
+			m_UserVectors = new FactorMatrix(m_NumUsers, m_Params.MAX_RANK);
+			m_ErrorSums = new FactorMatrix(m_NumUsers, m_Params.MAX_RANK);
+		}
+		
+		/**
+		 * One epoch over the users in the order of _order.
+		 */
+		void run( final int[] _order ) {
+			// User blocks with about the same number of ratings
+			long numEntries = Math.max(m_WeightTable.getNumEntries(), 1);
+			long count = 0;
+			int block = 0;
+			for( int n=0; n<m_NumUsers; ++n ) {
+				int b = (int)(count * m_NumBlocks / numEntries);
+				while( block < b )
+					m_UserBlockBegin[++block] = n;
+				count += m_WeightTable.getNumEntriesInRow(_order[n]);
+			}
+			while( block < m_NumBlocks )
+				m_UserBlockBegin[++block] = m_NumUsers;
+			
+			m_Loop.forRange( m_NumUsers, GRAIN, new ParallelLoop.Body() {
+				public void run( int _begin, int _end ) {
+					SgdWorkspace workspace = new SgdWorkspace();
+					FloatVector p_u = m_UserVectors.getRow(0);
+					FloatVector sum_u = m_ErrorSums.getRow(0);
+					for( int u=_begin; u<_end; ++u ) {
+						computeUserVector( u, m_UserVectors.getRow(u, p_u), workspace );
+						m_ErrorSums.getRow(u, sum_u).zero();
+					}
+				}
+			});
+			
+			for( int s=0; s<m_NumBlocks; ++s ) {
+				final int stratum = s;
+				m_Loop.forRange( m_NumBlocks, 1, new ParallelLoop.Body() {
+					public void run( int _begin, int _end ) {
+						for( int b=_begin; b<_end; ++b )
+							updateBlock( _order, b, (b + stratum) % m_NumBlocks );
+					}
+				});
+			}
+			
+			m_Loop.forRange( m_NumItems, GRAIN, new ParallelLoop.Body() {
+				public void run( int _begin, int _end ) {
+					FloatVector x_j = m_X.getRow(0);
+					FloatVector y_j = m_Y.getRow(0);
+					FloatVector sum_u = m_ErrorSums.getRow(0);
+					for( int j=_begin; j<_end; ++j ) {
+						for( int kc=m_WeightTable.getColumnBegin(j); kc<m_WeightTable.getColumnEnd(j); ++kc ) {
+							int u = m_WeightTable.getRowIndex(kc);
+							float norm = (float)(1.0/Math.sqrt(m_WeightTable.getNumEntriesInRow(u)));
+							updateItemVectors( u, m_WeightTable.getEntry(kc), norm, m_ErrorSums.getRow(u, sum_u), x_j, y_j );
+						}
+					}
+				}
+			});
+		}
+		
+		/**
+		 * Updates the ratings of the users of _userBlock for the items of
+		 * _itemBlock.
+		 */
+		private void updateBlock( int[] _order, int _userBlock, int _itemBlock ) {
+			FloatVector p_u = m_UserVectors.getRow(0);
+			FloatVector sum_u = m_ErrorSums.getRow(0);
+			FloatVector q_j = m_Q.getRow(0);
+			for( int n=m_UserBlockBegin[_userBlock]; n<m_UserBlockBegin[_userBlock+1]; ++n ) {
+				int u = _order[n];
+				m_UserVectors.getRow(u, p_u);
+				m_ErrorSums.getRow(u, sum_u);
+				for( int k=m_WeightTable.getRowBegin(u); k<m_WeightTable.getRowEnd(u); ++k ) {
+					if( m_ItemBlock[m_WeightTable.getColumnIndex(k)] == _itemBlock )
+						updateRating( u, k, p_u, sum_u, q_j );
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Runs ITERATRIONS epochs of SGD over all users with the schedule
+	 * m_Params.SGD_SCHEDULE and prints the throughput of each epoch.
+	 * 
+	 * The ratings and the item factors of the initialization reach values
+	 * of a few thousands, so the SGD diverges with a step size of GAMMA. The
+	 * steps of Q, X and Y are scaled as if the SGD ran on the ratings
+	 * divided by their largest absolute value s and on Q divided by its
+	 * largest absolute value a (this scales p_u by a/s, X by a and Y by
+	 * a/s). The biases keep GAMMA.
+	 * 
+	 * An update of user u reads and writes only the user's own values and
+	 * the values of the items of R(u). SGD_HOGWILD lets the updates of
+	 * different threads overlap on common items (lock-free). SGD_DSGD runs
+	 * blocks of users and items without common values in parallel (see
+	 * SgdStrata).
+	 */
 	private void learnFactorizedNeighborhoodModel() {
 		//Dump();
+		float ratingScale = 0.0f;
+		for( int k=0; k<m_WeightTable.getNumEntries(); ++k )
+			ratingScale = Math.max(ratingScale, Math.abs(m_WeightTable.getValue(k)));
+		float factorScale = 0.0f;
+		for( float q : m_Q.getData() )
+			factorScale = Math.max(factorScale, Math.abs(q));
+		double s = ratingScale > 0 ? ratingScale : 1.0;
+		double a = factorScale > 0 ? factorScale : 1.0;
+		m_GammaQ = (float)(GAMMA * (a/s) * (a/s));
+		m_GammaX = (float)(GAMMA / ((s*a) * (s*a)));
+		m_GammaY = (float)(GAMMA / (a*a));
+		
+		final int[] order = new int[m_NumUsers];
+		for( int u=0; u<m_NumUsers; ++u )
+			order[u] = u;
+		Random random = new Random(1);
+		SgdStrata strata = null;
+		if( m_Params.SGD_SCHEDULE == ParameterSet.SGD_DSGD )
+			strata = new SgdStrata( m_Params.PARALLELISM, random );
 		for( int i=0; i<ITERATRIONS; ++i ) {
-			for( int u=0; u<m_NumUsers; ++u ) {
-				FloatVector sum = new FloatVector(m_Params.MAX_RANK);				
-				float norm = (float)(1.0/Math.sqrt(m_WeightTable.getNumEntriesInRow(u)));	// This is |R(u)|^-0.5 in the document
-				// Compute |R(u)|^-0.5 SUM jR(u) [(r_uj-b_uj)*x_j+y_j]
-				FloatVector p = new FloatVector(m_Params.MAX_RANK);
-				for( SparseFloatMatrix.IndexValuePair entry : m_WeightTable.getRow(u) ) {
-					float b_uj = computeBaselinePredictor(u, entry.index);
-					p.add( FloatVector.mad(entry.value-b_uj, m_X[entry.index], m_Y[entry.index] ) );
-				}
-				p.mul(norm);
-				
-				for( SparseFloatMatrix.IndexValuePair entry : m_WeightTable.getRow(u) ) {
-					int j = entry.index;
-					float rh_ui = computeBaselinePredictor(u, j) + m_Q[j].dot(p);
-					float e_ui = entry.value - rh_ui;
-					assert(!Float.isNaN(e_ui));
-					// Accumulate information for gradient descent steps on m_X, m_Y
-					sum.add( FloatVector.mul(e_ui, m_Q[j]) );
-					// Perform gradient steps on m_Q, b_u and b_i
-					m_Q[j].add( FloatVector.mad(GAMMA*e_ui, p, FloatVector.mul(-GAMMA*LAMBDA, m_Q[j])) );
-					m_Bu[u] += GAMMA * (e_ui - LAMBDA * m_Bu[u]);
-					m_Bi[j] += GAMMA * (e_ui - LAMBDA * m_Bi[j]);
+			long start = System.nanoTime();
+			if( m_Params.SGD_SCHEDULE == ParameterSet.SGD_SEQUENTIAL ) {
+				SgdWorkspace workspace = new SgdWorkspace();
+				for( int u=0; u<m_NumUsers; ++u )
+					updateUser( u, workspace );
+			} else {
+				// Fisher-Yates shuffle
+				for( int k=m_NumUsers-1; k>0; --k ) {
+					int l = random.nextInt(k+1);
+					int t = order[k]; order[k] = order[l]; order[l] = t;
 				}
-				
-				for( SparseFloatMatrix.IndexValuePair entry : m_WeightTable.getRow(u) ) {
-					int j = entry.index;
-					m_X[j].add( FloatVector.mad(GAMMA*norm*(entry.value-computeBaselinePredictor(u, j)), sum, FloatVector.mul(-GAMMA*LAMBDA, m_X[j])) );
-					m_Y[j].add( FloatVector.mad(GAMMA*norm, sum, FloatVector.mul(-GAMMA*LAMBDA, m_Y[j])) );
-				}
-//				Dump();
+				if( m_Params.SGD_SCHEDULE == ParameterSet.SGD_HOGWILD )
+					updateUsers( order, GRAIN );
+				else
+					strata.run( order );
 			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format("SGD epoch %d: %.0f ratings/s", i+1, m_WeightTable.getNumEntries() / seconds));
 		}
 	}
 	
+	/**
+	 * Updates the users _users in parallel shards of _grain users.
+	 */
+	private void updateUsers( final int[] _users, int _grain ) {
+		m_Loop.forRange( _users.length, _grain, new ParallelLoop.Body() {
+			public void run( int _from, int _to ) {
+				SgdWorkspace workspace = new SgdWorkspace();
+				for( int k=_from; k<_to; ++k )
+					updateUser( _users[k], workspace );
+			}
+		});
+	}
+	
+	/**
+	 * One SGD step for all ratings of a user.
+	 */
+	private void updateUser( int u, SgdWorkspace _w ) {
+		_w.sum.zero();
+		computeUserVector( u, _w.p, _w );
+		for( int k=m_WeightTable.getRowBegin(u); k<m_WeightTable.getRowEnd(u); ++k )
+			updateRating( u, k, _w.p, _w.sum, _w.q_j );
+		
+		float norm = (float)(1.0/Math.sqrt(m_WeightTable.getNumEntriesInRow(u)));	// This is |R(u)|^-0.5 in the document
+		for( int k=m_WeightTable.getRowBegin(u); k<m_WeightTable.getRowEnd(u); ++k )
+			updateItemVectors( u, k, norm, _w.sum, _w.x_j, _w.y_j );
+	}
+	
+	/**
+	 * Computes _p = |R(u)|^-0.5 SUM jR(u) [(r_uj-b_uj)*x_j+y_j]
+	 */
+	private void computeUserVector( int u, FloatVector _p, SgdWorkspace _w ) {
+		float norm = (float)(1.0/Math.sqrt(m_WeightTable.getNumEntriesInRow(u)));	// This is |R(u)|^-0.5 in the document
+		_p.zero();
+		for( int k=m_WeightTable.getRowBegin(u); k<m_WeightTable.getRowEnd(u); ++k ) {
+			int j = m_WeightTable.getColumnIndex(k);
+			float b_uj = computeBaselinePredictor(u, j);
+			_p.axpyInPlace( m_WeightTable.getValue(k)-b_uj, m_X.getRow(j, _w.x_j) );
+			_p.add( m_Y.getRow(j, _w.y_j) );
+		}
+		_p.mul(norm);
+	}
+	
+	/**
+	 * Gradient steps on q_j, b_u and b_i for the rating k of user u.
+	 * @param _p The vector of the user (see computeUserVector).
+	 * @param _sum Accumulates e_ui * q_j for the steps on X and Y.
+	 * @param _q_j A row view of m_Q.
+	 */
+	private void updateRating( int u, int k, FloatVector _p, FloatVector _sum, FloatVector _q_j ) {
+		int j = m_WeightTable.getColumnIndex(k);
+		m_Q.getRow(j, _q_j);
+		float rh_ui = computeBaselinePredictor(u, j) + _q_j.dot(_p);
+		float e_ui = m_WeightTable.getValue(k) - rh_ui;
+		assert(!Float.isNaN(e_ui));
+		_sum.axpyInPlace( e_ui, _q_j );
+		_q_j.gradientStep( m_GammaQ*e_ui, _p, -GAMMA*LAMBDA );
+		m_Bu[u] += GAMMA * (e_ui - LAMBDA * m_Bu[u]);
+		m_Bi[j] += GAMMA * (e_ui - LAMBDA * m_Bi[j]);
+	}
+	
+	/**
+	 * Gradient steps on x_j and y_j for the rating k of user u.
+	 * @param _norm |R(u)|^-0.5
+	 * @param _sum The error sum of the user (see updateRating).
+	 * @param _x_j, _y_j Row views of m_X and m_Y.
+	 */
+	private void updateItemVectors( int u, int k, float _norm, FloatVector _sum, FloatVector _x_j, FloatVector _y_j ) {
+		int j = m_WeightTable.getColumnIndex(k);
+		m_X.getRow(j, _x_j).gradientStep( m_GammaX*_norm*(m_WeightTable.getValue(k)-computeBaselinePredictor(u, j)), _sum, -GAMMA*LAMBDA );
+		m_Y.getRow(j, _y_j).gradientStep( m_GammaY*_norm, _sum, -GAMMA*LAMBDA );
+	}
+
+	
 	
 	/**
 	 * Compute recommendation for a given user item pair.
@@ -287,7 +1052,7 @@ public class Recommender {
 	 */
 	public float getPrediction(int _user, int _item) {
 		
-		return m_Q[_item].dot(m_P[_user]);
+		return m_Q.dot(_item, m_P, _user);
 		
 /*		float latentFactorPart = 0;
 		for( SparseFloatMatrix.IndexValuePair entry : m_WeightTable.getRow(_user) ) {
@@ -317,15 +1082,15 @@ public class Recommender {
 
 			for( int i=0; i<m_NumItems; ++i ) {
 				file.write("item " + i + "\n");
-				file.write("X: " + m_X[i].toString() + "\n");
-				file.write("Y: " + m_Y[i].toString() + "\n");
-				file.write("Q: " + m_Q[i].toString() + "\n");
+				file.write("X: " + m_X.toString(i) + "\n");
+				file.write("Y: " + m_Y.toString(i) + "\n");
+				file.write("Q: " + m_Q.toString(i) + "\n");
 				file.write("Bi: " + m_Bi[i] + "\n");
 			}
 			
 			for( int u=0; u<m_NumItems; ++u ) {
 				file.write("Bu: " + m_Bu[u] + "\n");
-				file.write("P: " + m_P[u].toString() + "\n");
+				file.write("P: " + m_P.toString(u) + "\n");
 			}
 			file.close();
 
@@ -0,0 +1,127 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+
+/**
+ * FloatKernels on top of the JDK Vector API (jdk.incubator.vector).
+ *
+ * Requires Java 16 or newer and has to be compiled and run with
+ * --add-modules jdk.incubator.vector. It is only loaded by
+ * FloatKernels.create(), so the rest of the program works without it.
+ *
+ * Note: FloatVector is the class of this project, the Vector API class of
+ * the same name is always written with its package.
+ */
+public class SimdFloatKernels extends FloatKernels {
+	private static final VectorSpecies<Float> SPECIES = jdk.incubator.vector.FloatVector.SPECIES_PREFERRED;
+
+	public float dot( float[] _a, int _aOffset, float[] _b, int _bOffset, int _length ) {
+		jdk.incubator.vector.FloatVector acc = jdk.incubator.vector.FloatVector.zero(SPECIES);
+		int bound = SPECIES.loopBound(_length);
+		int i = 0;
+		for( ; i<bound; i+=SPECIES.length() ) {
+			jdk.incubator.vector.FloatVector a = jdk.incubator.vector.FloatVector.fromArray(SPECIES, _a, _aOffset+i);
+			jdk.incubator.vector.FloatVector b = jdk.incubator.vector.FloatVector.fromArray(SPECIES, _b, _bOffset+i);
+			acc = a.fma(b, acc);
+		}
+		float result = acc.reduceLanes(VectorOperators.ADD);
+		for( ; i<_length; ++i )
+			result += _a[_aOffset+i] * _b[_bOffset+i];
+		return result;
+	}
+
+	// The same loops as for arrays, so the results are the same
+	public float dot( ByteBuffer _a, int _aOffset, float[] _b, int _bOffset, int _length ) {
+		jdk.incubator.vector.FloatVector acc = jdk.incubator.vector.FloatVector.zero(SPECIES);
+		int bound = SPECIES.loopBound(_length);
+		int i = 0;
+		for( ; i<bound; i+=SPECIES.length() ) {
+			jdk.incubator.vector.FloatVector a = jdk.incubator.vector.FloatVector.fromByteBuffer(SPECIES, _a, 4 * (_aOffset+i), ByteOrder.BIG_ENDIAN);
+			jdk.incubator.vector.FloatVector b = jdk.incubator.vector.FloatVector.fromArray(SPECIES, _b, _bOffset+i);
+			acc = a.fma(b, acc);
+		}
+		float result = acc.reduceLanes(VectorOperators.ADD);
+		for( ; i<_length; ++i )
+			result += _a.getFloat(4 * (_aOffset+i)) * _b[_bOffset+i];
+		return result;
+	}
+
+	public float dot( ByteBuffer _a, int _aOffset, ByteBuffer _b, int _bOffset, int _length ) {
+		jdk.incubator.vector.FloatVector acc = jdk.incubator.vector.FloatVector.zero(SPECIES);
+		int bound = SPECIES.loopBound(_length);
+		int i = 0;
+		for( ; i<bound; i+=SPECIES.length() ) {
+			jdk.incubator.vector.FloatVector a = jdk.incubator.vector.FloatVector.fromByteBuffer(SPECIES, _a, 4 * (_aOffset+i), ByteOrder.BIG_ENDIAN);
+			jdk.incubator.vector.FloatVector b = jdk.incubator.vector.FloatVector.fromByteBuffer(SPECIES, _b, 4 * (_bOffset+i), ByteOrder.BIG_ENDIAN);
+			acc = a.fma(b, acc);
+		}
+		float result = acc.reduceLanes(VectorOperators.ADD);
+		for( ; i<_length; ++i )
+			result += _a.getFloat(4 * (_aOffset+i)) * _b.getFloat(4 * (_bOffset+i));
+		return result;
+	}
+
+	public void add( float[] _x, int _xOffset, float[] _y, int _yOffset, int _length ) {
+		int bound = SPECIES.loopBound(_length);
+		int i = 0;
+		for( ; i<bound; i+=SPECIES.length() ) {
+			jdk.incubator.vector.FloatVector x = jdk.incubator.vector.FloatVector.fromArray(SPECIES, _x, _xOffset+i);
+			jdk.incubator.vector.FloatVector y = jdk.incubator.vector.FloatVector.fromArray(SPECIES, _y, _yOffset+i);
+			y.add(x).intoArray(_y, _yOffset+i);
+		}
+		for( ; i<_length; ++i )
+			_y[_yOffset+i] += _x[_xOffset+i];
+	}
+
+	public void sub( float[] _x, int _xOffset, float[] _y, int _yOffset, int _length ) {
+		int bound = SPECIES.loopBound(_length);
+		int i = 0;
+		for( ; i<bound; i+=SPECIES.length() ) {
+			jdk.incubator.vector.FloatVector x = jdk.incubator.vector.FloatVector.fromArray(SPECIES, _x, _xOffset+i);
+			jdk.incubator.vector.FloatVector y = jdk.incubator.vector.FloatVector.fromArray(SPECIES, _y, _yOffset+i);
+			y.sub(x).intoArray(_y, _yOffset+i);
+		}
+		for( ; i<_length; ++i )
+			_y[_yOffset+i] -= _x[_xOffset+i];
+	}
+
+	public void scale( float _s, float[] _y, int _yOffset, int _length ) {
+		int bound = SPECIES.loopBound(_length);
+		int i = 0;
+		for( ; i<bound; i+=SPECIES.length() ) {
+			jdk.incubator.vector.FloatVector y = jdk.incubator.vector.FloatVector.fromArray(SPECIES, _y, _yOffset+i);
+			y.mul(_s).intoArray(_y, _yOffset+i);
+		}
+		for( ; i<_length; ++i )
+			_y[_yOffset+i] *= _s;
+	}
+
+	public void axpy( float _s, float[] _x, int _xOffset, float[] _y, int _yOffset, int _length ) {
+		jdk.incubator.vector.FloatVector s = jdk.incubator.vector.FloatVector.broadcast(SPECIES, _s);
+		int bound = SPECIES.loopBound(_length);
+		int i = 0;
+		for( ; i<bound; i+=SPECIES.length() ) {
+			jdk.incubator.vector.FloatVector x = jdk.incubator.vector.FloatVector.fromArray(SPECIES, _x, _xOffset+i);
+			jdk.incubator.vector.FloatVector y = jdk.incubator.vector.FloatVector.fromArray(SPECIES, _y, _yOffset+i);
+			x.fma(s, y).intoArray(_y, _yOffset+i);
+		}
+		for( ; i<_length; ++i )
+			_y[_yOffset+i] += _s * _x[_xOffset+i];
+	}
+
+	public void mad( float _s, float[] _a, int _aOffset, float[] _b, int _bOffset, float[] _dst, int _dstOffset, int _length ) {
+		jdk.incubator.vector.FloatVector s = jdk.incubator.vector.FloatVector.broadcast(SPECIES, _s);
+		int bound = SPECIES.loopBound(_length);
+		int i = 0;
+		for( ; i<bound; i+=SPECIES.length() ) {
+			jdk.incubator.vector.FloatVector a = jdk.incubator.vector.FloatVector.fromArray(SPECIES, _a, _aOffset+i);
+			jdk.incubator.vector.FloatVector b = jdk.incubator.vector.FloatVector.fromArray(SPECIES, _b, _bOffset+i);
+			a.fma(s, b).intoArray(_dst, _dstOffset+i);
+		}
+		for( ; i<_length; ++i )
+			_dst[_dstOffset+i] = _a[_aOffset+i]*_s + _b[_bOffset+i];
+	}
+}
@@ -1,4 +1,5 @@
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -7,6 +8,28 @@ import java.util.NoSuchElementException;
  * @author Johannes
  *
  * A sparse matrix of float values which can be iterated per row.
+ *
+ * The matrix has two storage modes. While it is filled it keeps one sorted
+ * list per row. Calling compress() converts it into the compressed sparse row
+ * (CSR) format: three primitive arrays (row pointers, column indices and
+ * values) without any object per entry. Afterwards the values of existing
+ * entries can still be changed but no new entries can be inserted.
+ *
+ * The fastest way to traverse a compressed row is by entry index:
+ * 	for( int k=m.getRowBegin(u); k<m.getRowEnd(u); ++k )
+ * 		... m.getColumnIndex(k) ... m.getValue(k) ...
+ *
+ * A compressed matrix can additionally build a column index (CSC) which
+ * allows the same traversal per column:
+ * 	for( int kc=m.getColumnBegin(i); kc<m.getColumnEnd(i); ++kc )
+ * 		... m.getRowIndex(kc) ... m.getValue(m.getEntry(kc)) ...
+ * 
+ * replaceRow creates a copy with one row replaced (copy on write). The rows
+ * of such a matrix are not necessarily stored in the CSR arrays; they are
+ * traversed through the arrays of the row:
+ * 	int[] columns = m.getColumnIndices(u);
+ * 	for( int k=m.getRowBegin(u); k<m.getRowEnd(u); ++k )
+ * 		... columns[k] ...
  * 
  * TODO: setting something 0 will currently not remove the entry but should do
  * exactly that.
@@ -29,18 +52,51 @@ public class SparseFloatMatrix {
 		}
 	}
 	
-	// numRows Sorted arrays
+	// numRows Sorted arrays (null after compress())
 	private ArrayList<IndexValuePair>[] m_Rows;
+
+	// CSR storage (null before compress()).
+	// The entries of row r are stored at [m_RowPtr[r], m_RowPtr[r+1]).
+	private int[] m_RowPtr;
+	private int[] m_ColIdx;
+	private float[] m_Values;
+	
+	// Optional transposed (CSC) index, see buildColumnIndex().
+	// The entries of column c are at [m_ColPtr[c], m_ColPtr[c+1]) and refer
+	// to their row and their position in the CSR arrays. The values are not
+	// duplicated.
+	private int[] m_ColPtr;
+	private int[] m_ColRowIdx;
+	private int[] m_ColEntry;
 	
 	// The number of rows is accessible by m_Rows.size().
 	// The number of columns is given by m_NumColumns;
+	private int m_NumRows;
 	private int m_NumColumns;
 	private int[] m_NumElementsInColumn;
 	
+	// Rows per page of replaced rows and columns per page of column counts
+	// (see replaceRow)
+	private static final int PAGE_SHIFT = 10;
+	private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	
+	// The rows replaced by replaceRow (null if there are none). Row r is
+	// m_ReplacedColumns/m_ReplacedValues[r >> PAGE_SHIFT][r % PAGE_SIZE] if
+	// that page and row exist, otherwise it is stored in the CSR arrays.
+	// Pages and rows are shared with the matrices created by replaceRow.
+	private int[][][] m_ReplacedColumns;
+	private float[][][] m_ReplacedValues;
+	// The column counts which differ from m_NumElementsInColumn in pages of
+	// PAGE_SIZE columns (null if there are none, shared like the rows)
+	private int[][] m_ColumnCounts;
+	// Number of entries minus the length of the CSR arrays
+	private int m_NumEntriesDelta;
+	
 	// numColumns Sorted arrays
 	//private int ArrayList<IndexValuePair>[];
 	
 	SparseFloatMatrix( int _numRows, int _numColumns ) {
+		m_NumRows = _numRows;
 		m_NumColumns = _numColumns;
 		m_Rows = new ArrayList[_numRows];
 		m_NumElementsInColumn = new int[_numColumns];
@@ -48,9 +104,199 @@ public class SparseFloatMatrix {
 			m_Rows[i] = new ArrayList<IndexValuePair>();
 	}
 	
+	/**
+	 * Creates a compressed matrix from CSR arrays (see
+	 * SparseFloatMatrixBuilder). The column indices of each row have to be
+	 * sorted and unique. The arrays are used without a copy.
+	 */
+	SparseFloatMatrix( int _numRows, int _numColumns, int[] _rowPtr, int[] _colIdx, float[] _values ) {
+		if( _rowPtr.length != _numRows+1 || _colIdx.length != _values.length
+			|| _rowPtr[_numRows] != _colIdx.length ) throw new IllegalArgumentException();
+		m_NumRows = _numRows;
+		m_NumColumns = _numColumns;
+		m_RowPtr = _rowPtr;
+		m_ColIdx = _colIdx;
+		m_Values = _values;
+		m_NumElementsInColumn = new int[_numColumns];
+		for( int k=0; k<_colIdx.length; ++k )
+			++m_NumElementsInColumn[_colIdx[k]];
+	}
+
+	/**
+	 * Creates a compressed matrix which uses the same structure (row pointers,
+	 * column indices and column counts) as _structure but a separate value
+	 * array initialized with 0.
+	 */
+	SparseFloatMatrix( SparseFloatMatrix _structure ) {
+		if( !_structure.isCompressed() || _structure.m_ReplacedColumns != null ) throw new IllegalArgumentException();
+		m_NumRows = _structure.m_NumRows;
+		m_NumColumns = _structure.m_NumColumns;
+		m_NumElementsInColumn = _structure.m_NumElementsInColumn;
+		m_RowPtr = _structure.m_RowPtr;
+		m_ColIdx = _structure.m_ColIdx;
+		m_Values = new float[m_ColIdx.length];
+		m_ColPtr = _structure.m_ColPtr;
+		m_ColRowIdx = _structure.m_ColRowIdx;
+		m_ColEntry = _structure.m_ColEntry;
+	}
+
+	/**
+	 * A copy of a compressed matrix with _numRows rows which shares all
+	 * arrays and pages with it, but not the page indices (see replaceRow).
+	 */
+	private SparseFloatMatrix( SparseFloatMatrix _matrix, int _numRows ) {
+		m_NumRows = _numRows;
+		m_NumColumns = _matrix.m_NumColumns;
+		m_NumElementsInColumn = _matrix.m_NumElementsInColumn;
+		m_RowPtr = _matrix.m_RowPtr;
+		m_ColIdx = _matrix.m_ColIdx;
+		m_Values = _matrix.m_Values;
+		m_NumEntriesDelta = _matrix.m_NumEntriesDelta;
+		int numPages = ((_numRows - 1) >> PAGE_SHIFT) + 1;
+		m_ReplacedColumns = new int[numPages][][];
+		m_ReplacedValues = new float[numPages][][];
+		if( _matrix.m_ReplacedColumns != null ) {
+			System.arraycopy(_matrix.m_ReplacedColumns, 0, m_ReplacedColumns, 0, _matrix.m_ReplacedColumns.length);
+			System.arraycopy(_matrix.m_ReplacedValues, 0, m_ReplacedValues, 0, _matrix.m_ReplacedValues.length);
+		}
+		m_ColumnCounts = _matrix.m_ColumnCounts != null ? _matrix.m_ColumnCounts.clone()
+				: new int[((m_NumColumns - 1) >> PAGE_SHIFT) + 1][];
+	}
+
+	/**
+	 * Converts the row lists into the CSR format. Calling this method more than
+	 * once has no effect.
+	 */
+	public void compress() {
+		if( isCompressed() ) return;
+
+		m_RowPtr = new int[m_NumRows+1];
+		for( int r=0; r<m_NumRows; ++r )
+			m_RowPtr[r+1] = m_RowPtr[r] + m_Rows[r].size();
+		m_ColIdx = new int[m_RowPtr[m_NumRows]];
+		m_Values = new float[m_RowPtr[m_NumRows]];
+		for( int r=0; r<m_NumRows; ++r ) {
+			int k = m_RowPtr[r];
+			for( IndexValuePair entry : m_Rows[r] ) {
+				m_ColIdx[k] = entry.index;
+				m_Values[k] = entry.value;
+				++k;
+			}
+			// Release the row as early as possible
+			m_Rows[r] = null;
+		}
+		m_Rows = null;
+	}
+
+	public boolean isCompressed() {
+		return m_Rows == null;
+	}
+	
+	/**
+	 * Creates a copy of a compressed matrix where one row is replaced by the
+	 * first row of _row (which has to be compressed too). _rowIndex ==
+	 * getNumRows() appends a new row. This matrix is not changed.
+	 * 
+	 * The copy shares the CSR arrays and the rows replaced before with this
+	 * matrix (copy on write). Only the page indices, the page of the row and
+	 * the pages with the counts of the changed columns are copied, so the
+	 * costs do not depend on the number of entries. The values of both
+	 * matrices must not be changed afterwards. The copy has no column index.
+	 */
+	public SparseFloatMatrix replaceRow( int _rowIndex, SparseFloatMatrix _row ) {
+		if( !isCompressed() || !_row.isCompressed() ) throw new IllegalStateException("The matrices have to be compressed");
+		if( _rowIndex < 0 || _rowIndex > m_NumRows || _row.m_NumColumns != m_NumColumns ) throw new IllegalArgumentException();
+		int[] columns = Arrays.copyOfRange(_row.getColumnIndices(0), _row.getRowBegin(0), _row.getRowEnd(0));
+		float[] values = Arrays.copyOfRange(_row.getValues(0), _row.getRowBegin(0), _row.getRowEnd(0));
+		
+		SparseFloatMatrix result = new SparseFloatMatrix( this, Math.max(m_NumRows, _rowIndex+1) );
+		if( _rowIndex < m_NumRows ) {
+			int[] oldColumns = getColumnIndices(_rowIndex);
+			for( int k=getRowBegin(_rowIndex); k<getRowEnd(_rowIndex); ++k )
+				result.addToColumnCount( oldColumns[k], -1, this );
+			result.m_NumEntriesDelta -= getNumEntriesInRow(_rowIndex);
+		}
+		for( int column : columns )
+			result.addToColumnCount( column, 1, this );
+		result.m_NumEntriesDelta += columns.length;
+		
+		int page = _rowIndex >> PAGE_SHIFT;
+		int[][] columnPage = result.m_ReplacedColumns[page];
+		float[][] valuePage = result.m_ReplacedValues[page];
+		result.m_ReplacedColumns[page] = columnPage == null ? new int[PAGE_SIZE][] : columnPage.clone();
+		result.m_ReplacedValues[page] = valuePage == null ? new float[PAGE_SIZE][] : valuePage.clone();
+		result.m_ReplacedColumns[page][_rowIndex & (PAGE_SIZE-1)] = columns;
+		result.m_ReplacedValues[page][_rowIndex & (PAGE_SIZE-1)] = values;
+		return result;
+	}
+	
+	/**
+	 * Changes the count of a column of a matrix created by replaceRow. A
+	 * page of counts which is still shared with _source is copied first.
+	 */
+	private void addToColumnCount( int _column, int _delta, SparseFloatMatrix _source ) {
+		int p = _column >> PAGE_SHIFT;
+		int[] page = m_ColumnCounts[p];
+		if( page == null || (_source.m_ColumnCounts != null && page == _source.m_ColumnCounts[p]) ) {
+			int[] copy = new int[PAGE_SIZE];
+			if( page != null )
+				System.arraycopy(page, 0, copy, 0, PAGE_SIZE);
+			else
+				System.arraycopy(m_NumElementsInColumn, p << PAGE_SHIFT, copy, 0, Math.min(PAGE_SIZE, m_NumColumns - (p << PAGE_SHIFT)));
+			m_ColumnCounts[p] = page = copy;
+		}
+		page[_column & (PAGE_SIZE-1)] += _delta;
+	}
+	
+	/**
+	 * @return The columns of a row replaced by replaceRow or null if the row
+	 * 	is stored in the CSR arrays.
+	 */
+	private int[] getReplacedColumns( int _row ) {
+		if( m_ReplacedColumns == null ) return null;
+		int[][] page = m_ReplacedColumns[_row >> PAGE_SHIFT];
+		return page == null ? null : page[_row & (PAGE_SIZE-1)];
+	}
+	
+	/**
+	 * Creates the column major (CSC) index of a compressed matrix. Within a
+	 * column the entries are sorted by row. Calling this method more than
+	 * once has no effect.
+	 */
+	public void buildColumnIndex() {
+		if( !isCompressed() ) throw new IllegalStateException("The matrix has to be compressed first");
+		if( m_ReplacedColumns != null ) throw new IllegalStateException("The matrix has replaced rows");
+		if( hasColumnIndex() ) return;
+		
+		int[] colPtr = new int[m_NumColumns+1];
+		for( int c=0; c<m_NumColumns; ++c )
+			colPtr[c+1] = colPtr[c] + m_NumElementsInColumn[c];
+		int[] next = Arrays.copyOf(colPtr, m_NumColumns);
+		int[] rowIdx = new int[m_ColIdx.length];
+		int[] entry = new int[m_ColIdx.length];
+		for( int r=0; r<m_NumRows; ++r ) {
+			for( int k=m_RowPtr[r]; k<m_RowPtr[r+1]; ++k ) {
+				int kc = next[m_ColIdx[k]]++;
+				rowIdx[kc] = r;
+				entry[kc] = k;
+			}
+		}
+		m_ColPtr = colPtr;
+		m_ColRowIdx = rowIdx;
+		m_ColEntry = entry;
+	}
+	
+	public boolean hasColumnIndex() {
+		return m_ColPtr != null;
+	}
+
 	public void set( int _row, int _column, float _value ) {
 		int index = binsearch( _row, _column );
-		if( (index < m_Rows[_row].size()) && m_Rows[_row].get(index).index == _column )
+		if( isCompressed() ) {
+			if( index < getRowEnd(_row) && getColumnIndices(_row)[index] == _column )
+				getValues(_row)[index] = _value;
+			else throw new UnsupportedOperationException("Cannot insert into a compressed matrix");
+		} else if( (index < m_Rows[_row].size()) && m_Rows[_row].get(index).index == _column )
 			m_Rows[_row].get(index).value = _value;
 		else {
 			m_Rows[_row].add(index, new IndexValuePair(_column, _value));
@@ -60,6 +306,11 @@ public class SparseFloatMatrix {
 	
 	public float get( int _row, int _column ) {
 		int index = binsearch( _row, _column );
+		if( isCompressed() ) {
+			if( index < getRowEnd(_row) && getColumnIndices(_row)[index] == _column )
+				return getValues(_row)[index];
+			else return 0.0f;
+		}
 		if( (index < m_Rows[_row].size()) && m_Rows[_row].get(index).index == _column )
 			return m_Rows[_row].get(index).value;
 		else return 0.0f;	// Default value
@@ -68,7 +319,11 @@ public class SparseFloatMatrix {
 	// Increase a value by a certain value
 	public void add( int _row, int _column, float _value ) {
 		int index = binsearch( _row, _column );
-		if( (index < m_Rows[_row].size()) && m_Rows[_row].get(index).index == _column )
+		if( isCompressed() ) {
+			if( index < getRowEnd(_row) && getColumnIndices(_row)[index] == _column )
+				getValues(_row)[index] += _value;
+			else throw new UnsupportedOperationException("Cannot insert into a compressed matrix");
+		} else if( (index < m_Rows[_row].size()) && m_Rows[_row].get(index).index == _column )
 			m_Rows[_row].get(index).value += _value;
 		else {
 			m_Rows[_row].add(index, new IndexValuePair(_column, _value));
@@ -77,7 +332,7 @@ public class SparseFloatMatrix {
 	}
 	
 	public int getNumRows() {
-		return m_Rows.length;
+		return m_NumRows;
 	}
 	
 	public int getNumColumns() {
@@ -85,22 +340,155 @@ public class SparseFloatMatrix {
 	}
 	
 	public int getNumEntriesInRow( int _row ) {
+		if( isCompressed() )
+			return getRowEnd(_row) - getRowBegin(_row);
 		return m_Rows[_row].size(); 
 	}
 	
 	public int getNumEntriesInColumn( int _column ) {
+		if( m_ColumnCounts != null ) {
+			int[] page = m_ColumnCounts[_column >> PAGE_SHIFT];
+			if( page != null )
+				return page[_column & (PAGE_SIZE-1)];
+		}
 		return m_NumElementsInColumn[_column]; 
 	}
 	
+	/**
+	 * Number of stored entries of the compressed matrix.
+	 */
+	public int getNumEntries() {
+		return m_ColIdx.length + m_NumEntriesDelta;
+	}
+
+	/**
+	 * Index of the first entry of a row of the compressed matrix in
+	 * getColumnIndices(_row) and getValues(_row).
+	 */
+	public int getRowBegin( int _row ) {
+		return getReplacedColumns(_row) != null ? 0 : m_RowPtr[_row];
+	}
+
+	/**
+	 * Index behind the last entry of a row of the compressed matrix in
+	 * getColumnIndices(_row) and getValues(_row).
+	 */
+	public int getRowEnd( int _row ) {
+		int[] columns = getReplacedColumns(_row);
+		return columns != null ? columns.length : m_RowPtr[_row+1];
+	}
+
+	/**
+	 * The array with the column indices of the entries of a row at
+	 * [getRowBegin(_row), getRowEnd(_row)). Without replaced rows (see
+	 * replaceRow) this is the CSR array which getColumnIndex accesses.
+	 */
+	int[] getColumnIndices( int _row ) {
+		int[] columns = getReplacedColumns(_row);
+		return columns != null ? columns : m_ColIdx;
+	}
+
+	/**
+	 * The array with the values of the entries of a row at
+	 * [getRowBegin(_row), getRowEnd(_row)). Without replaced rows (see
+	 * replaceRow) this is the CSR array which getValue accesses.
+	 */
+	float[] getValues( int _row ) {
+		if( getReplacedColumns(_row) != null )
+			return m_ReplacedValues[_row >> PAGE_SHIFT][_row & (PAGE_SIZE-1)];
+		return m_Values;
+	}
+
+	/**
+	 * Fast access without a check of the index
+	 * @param _entry Index of an entry of the compressed matrix without
+	 * 	replaced rows (see getColumnIndices for the others).
+	 * @return The column of the entry.
+	 */
+	public int getColumnIndex( int _entry ) {
+		return m_ColIdx[_entry];
+	}
+
+	/**
+	 * Fast access without a check of the index
+	 * @param _entry Index of an entry of the compressed matrix without
+	 * 	replaced rows (see getValues for the others).
+	 * @return The value of the entry.
+	 */
+	public float getValue( int _entry ) {
+		return m_Values[_entry];
+	}
+
+	/**
+	 * Fast set without a check of the index
+	 * @param _entry Index of an entry of the compressed matrix without
+	 * 	replaced rows.
+	 * @param _value The new value of the entry.
+	 */
+	public void setValue( int _entry, float _value ) {
+		m_Values[_entry] = _value;
+	}
+
 	
+	/**
+	 * Index of the first entry of a column in the column index.
+	 */
+	public int getColumnBegin( int _column ) {
+		return m_ColPtr[_column];
+	}
+
+	/**
+	 * Index behind the last entry of a column in the column index.
+	 */
+	public int getColumnEnd( int _column ) {
+		return m_ColPtr[_column+1];
+	}
+
+	/**
+	 * Fast access without a check of the index
+	 * @param _columnEntry Index of an entry of the column index.
+	 * @return The row of the entry.
+	 */
+	public int getRowIndex( int _columnEntry ) {
+		return m_ColRowIdx[_columnEntry];
+	}
+
+	/**
+	 * Fast access without a check of the index
+	 * @param _columnEntry Index of an entry of the column index.
+	 * @return The index of the same entry in the CSR arrays which can be
+	 * 	used with getValue()/setValue().
+	 */
+	public int getEntry( int _columnEntry ) {
+		return m_ColEntry[_columnEntry];
+	}
+
+
 	/**
 	 * Binary search for a matrix-indexed element.
 	 * 
 	 * @param _column Column index of the element in the matrix. 
-	 * @return The item index in the internal array.
+	 * @return The item index in the internal array. For a compressed matrix
+	 * 	this is the index into getColumnIndices(_row).
 	 */
 	private int binsearch( int _row, int _column )
 	{
+		if( isCompressed() ) {
+			int[] columns = getColumnIndices(_row);
+			int l = getRowBegin(_row);
+			int r = getRowEnd(_row)-1;
+			while( l<=r ) {
+				int m = (l+r)>>>1;
+				if( columns[m] < _column )
+					l = m+1;
+				else if( columns[m] > _column )
+					r = m-1;
+				else
+					return m;
+			}
+			return l;
+		}
+
 		int l = 0;
 		int r = m_Rows[_row].size()-1;
 //		for( int i=0; i<r; ++i)
@@ -151,15 +539,76 @@ public class SparseFloatMatrix {
 		}
 	}
 	
+	/**
+	 * An iterator over the entries of one row of the compressed matrix.
+	 *
+	 * To avoid an allocation per entry the same IndexValuePair is returned
+	 * on each call of next(). It is only valid until the next call.
+	 */
+	public class CompressedRowIterator implements Iterator<IndexValuePair> {
+
+		private int m_Index;
+		private int m_End;
+		private int[] m_Columns;
+		private float[] m_RowValues;
+		private IndexValuePair m_Current = new IndexValuePair(-1, 0.0f);
+
+		public CompressedRowIterator( int _row ) {
+			m_Index = getRowBegin(_row);
+			m_End = getRowEnd(_row);
+			m_Columns = getColumnIndices(_row);
+			m_RowValues = getValues(_row);
+		}
+
+		public boolean hasNext() {
+			return m_Index < m_End;
+		}
+
+		public IndexValuePair next() throws NoSuchElementException {
+			if( !hasNext() ) {
+				throw new NoSuchElementException("No more elements");
+		    }
+			m_Current.index = m_Columns[m_Index];
+			m_Current.value = m_RowValues[m_Index];
+			++m_Index;
+		    return m_Current;
+		}
+
+		public void remove() throws UnsupportedOperationException {
+			throw new UnsupportedOperationException("Operation is not supported");
+		}
+	}
+
 	public Iterator<Float> getIterator( int _row ) {
+		if( isCompressed() ) {
+			final Iterator<IndexValuePair> it = new CompressedRowIterator( _row );
+			return new Iterator<Float>() {
+				public boolean hasNext()	{ return it.hasNext(); }
+				public Float next()			{ return it.next().value; }
+				public void remove()		{ it.remove(); }
+			};
+		}
 		return new RowIterator( m_Rows[_row] );
 	}
 	
 	public Iterator<IndexValuePair> getSkipIterator( int _row ) {
+		if( isCompressed() )
+			return new CompressedRowIterator( _row );
 		return m_Rows[_row].iterator();
 	}
 	
-	public ArrayList<IndexValuePair> getRow( int _row ) {
+	/**
+	 * Iterable view of a row. For a compressed matrix the entries are
+	 * returned by a CompressedRowIterator (see there).
+	 */
+	public Iterable<IndexValuePair> getRow( final int _row ) {
+		if( isCompressed() ) {
+			return new Iterable<IndexValuePair>() {
+				public Iterator<IndexValuePair> iterator() {
+					return new CompressedRowIterator( _row );
+				}
+			};
+		}
 		return m_Rows[_row];
 	}
 }
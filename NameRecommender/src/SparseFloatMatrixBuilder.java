@@ -0,0 +1,111 @@
+import java.util.Arrays;
+
+
+/**
+ * Collects (row, column, value) triples and creates a compressed
+ * SparseFloatMatrix from them in one go.
+ *
+ * Inserting into a SparseFloatMatrix one by one costs a binary search plus
+ * an insertion in the middle of the row. The builder only appends to
+ * primitive arrays. build() distributes the triples to their rows with a
+ * counting sort, sorts each row by column and sums up duplicates. Duplicates
+ * are summed in the order they were added, so the result is the same as
+ * calling SparseFloatMatrix.add for each triple.
+ */
+public class SparseFloatMatrixBuilder {
+	private int m_NumRows;
+	private int m_NumColumns;
+
+	// The collected triples (coordinate format)
+	private int[] m_Rows;
+	private int[] m_Columns;
+	private float[] m_Values;
+	private int m_NumEntries;
+
+	SparseFloatMatrixBuilder( int _numRows, int _numColumns ) {
+		this( _numRows, _numColumns, 16 );
+	}
+
+	/**
+	 * @param _expectedNumEntries Initial capacity. The builder grows if more
+	 * 	triples are added.
+	 */
+	SparseFloatMatrixBuilder( int _numRows, int _numColumns, int _expectedNumEntries ) {
+		m_NumRows = _numRows;
+		m_NumColumns = _numColumns;
+		int capacity = Math.max(_expectedNumEntries, 1);
+		m_Rows = new int[capacity];
+		m_Columns = new int[capacity];
+		m_Values = new float[capacity];
+	}
+
+	/**
+	 * Adds a value to an entry. Adding the same entry more than once sums up
+	 * the values.
+	 */
+	public void add( int _row, int _column, float _value ) {
+		if( _row < 0 || _row >= m_NumRows || _column < 0 || _column >= m_NumColumns )
+			throw new IndexOutOfBoundsException("[" + _row + ", " + _column + "]");
+		if( m_NumEntries == m_Rows.length ) {
+			int capacity = m_Rows.length + (m_Rows.length >> 1) + 1;
+			m_Rows = Arrays.copyOf(m_Rows, capacity);
+			m_Columns = Arrays.copyOf(m_Columns, capacity);
+			m_Values = Arrays.copyOf(m_Values, capacity);
+		}
+		m_Rows[m_NumEntries] = _row;
+		m_Columns[m_NumEntries] = _column;
+		m_Values[m_NumEntries] = _value;
+		++m_NumEntries;
+	}
+
+	/**
+	 * Creates the compressed matrix. The builder can be used further
+	 * afterwards.
+	 */
+	public SparseFloatMatrix build() {
+		// Counting sort on the row index (stable)
+		int[] rowPtr = new int[m_NumRows+1];
+		for( int e=0; e<m_NumEntries; ++e )
+			++rowPtr[m_Rows[e]+1];
+		for( int r=0; r<m_NumRows; ++r )
+			rowPtr[r+1] += rowPtr[r];
+		int[] next = Arrays.copyOf(rowPtr, m_NumRows);
+		int[] columns = new int[m_NumEntries];
+		float[] values = new float[m_NumEntries];
+		for( int e=0; e<m_NumEntries; ++e ) {
+			int k = next[m_Rows[e]]++;
+			columns[k] = m_Columns[e];
+			values[k] = m_Values[e];
+		}
+
+		// Sort each row by column and merge duplicates. The position is part
+		// of the key so equal columns stay in insertion order.
+		long[] keys = new long[m_NumEntries];
+		for( int k=0; k<m_NumEntries; ++k )
+			keys[k] = ((long)columns[k] << 32) | k;
+		int[] colIdx = new int[m_NumEntries];
+		float[] merged = new float[m_NumEntries];
+		int numMerged = 0;
+		for( int r=0; r<m_NumRows; ++r ) {
+			int begin = rowPtr[r];
+			int end = rowPtr[r+1];
+			Arrays.sort(keys, begin, end);
+			rowPtr[r] = numMerged;
+			for( int k=begin; k<end; ++k ) {
+				int column = (int)(keys[k] >>> 32);
+				float value = values[(int)keys[k]];
+				if( numMerged > rowPtr[r] && colIdx[numMerged-1] == column )
+					merged[numMerged-1] += value;
+				else {
+					colIdx[numMerged] = column;
+					merged[numMerged] = value;
+					++numMerged;
+				}
+			}
+		}
+		rowPtr[m_NumRows] = numMerged;
+
+		return new SparseFloatMatrix( m_NumRows, m_NumColumns, rowPtr,
+				Arrays.copyOf(colIdx, numMerged), Arrays.copyOf(merged, numMerged) );
+	}
+}
@@ -0,0 +1,196 @@
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * Maps strings to packed ids [0,size()) and back.
+ *
+ * All strings are stored UTF-8 encoded one after another in a single byte
+ * array (the arena); string i is [m_Offsets[i], m_Offsets[i+1]). The lookup
+ * is an open addressing hash table (linear probing) of int ids, so neither
+ * String nor Integer objects are kept per entry. Strings can be looked up
+ * directly from a byte range, e.g. a token in the buffer of the parser.
+ *
+ * The ids are assigned in the order in which the strings are added.
+ */
+public class StringDictionary {
+	private byte[] m_Arena = new byte[1 << 10];
+	private int m_ArenaSize;
+
+	private int[] m_Offsets = new int[17];	// m_Offsets[size()] is the end of the arena
+	private int[] m_Hashes = new int[16];	// Hash of each string (used for a rehash)
+	private int m_Size;
+
+	// Slot -> id+1 (0 = empty slot). The length is a power of two.
+	private int[] m_Table = new int[32];
+
+	public StringDictionary() {
+	}
+
+	/**
+	 * Creates a copy of _other. Adding strings to the copy does not change
+	 * _other.
+	 */
+	public StringDictionary( StringDictionary _other ) {
+		m_Arena = Arrays.copyOf(_other.m_Arena, _other.m_ArenaSize);
+		m_ArenaSize = _other.m_ArenaSize;
+		m_Offsets = _other.m_Offsets.clone();
+		m_Hashes = _other.m_Hashes.clone();
+		m_Size = _other.m_Size;
+		m_Table = _other.m_Table.clone();
+	}
+
+	public int size() {
+		return m_Size;
+	}
+
+	/**
+	 * @return The id of the UTF-8 encoded string _bytes[_begin,_end) or -1 if
+	 * 	it is unknown.
+	 */
+	public int get( byte[] _bytes, int _begin, int _end ) {
+		int hash = hash(_bytes, _begin, _end);
+		int mask = m_Table.length - 1;
+		for( int slot = hash & mask; ; slot = (slot + 1) & mask ) {
+			int id = m_Table[slot] - 1;
+			if( id < 0 ) return -1;
+			if( m_Hashes[id] == hash && equals(id, _bytes, _begin, _end) ) return id;
+		}
+	}
+
+	public int get( String _string ) {
+		byte[] bytes = _string.getBytes(LineTokenizer.UTF8);
+		return get(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * @return The id of the UTF-8 encoded string _bytes[_begin,_end). Unknown
+	 * 	strings are added and get the next free id.
+	 */
+	public int getOrAdd( byte[] _bytes, int _begin, int _end ) {
+		int hash = hash(_bytes, _begin, _end);
+		int mask = m_Table.length - 1;
+		int slot = hash & mask;
+		for( ; ; slot = (slot + 1) & mask ) {
+			int id = m_Table[slot] - 1;
+			if( id < 0 ) break;
+			if( m_Hashes[id] == hash && equals(id, _bytes, _begin, _end) ) return id;
+		}
+
+		// Append the new string
+		int length = _end - _begin;
+		if( m_ArenaSize + length > m_Arena.length )
+			m_Arena = Arrays.copyOf(m_Arena, Math.max(m_ArenaSize + length, m_Arena.length * 2));
+		System.arraycopy(_bytes, _begin, m_Arena, m_ArenaSize, length);
+		m_ArenaSize += length;
+		if( m_Size == m_Hashes.length ) {
+			m_Hashes = Arrays.copyOf(m_Hashes, m_Size * 2);
+			m_Offsets = Arrays.copyOf(m_Offsets, m_Size * 2 + 1);
+		}
+		int id = m_Size++;
+		m_Hashes[id] = hash;
+		m_Offsets[m_Size] = m_ArenaSize;
+		m_Table[slot] = id + 1;
+
+		// Keep the table at most half full
+		if( 2 * m_Size > m_Table.length )
+			rehash();
+		return id;
+	}
+
+	public int getOrAdd( String _string ) {
+		byte[] bytes = _string.getBytes(LineTokenizer.UTF8);
+		return getOrAdd(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * @return The id of string _id of another dictionary in this one. The
+	 * 	string is added if it is unknown.
+	 */
+	public int getOrAdd( StringDictionary _other, int _id ) {
+		return getOrAdd(_other.m_Arena, _other.m_Offsets[_id], _other.m_Offsets[_id+1]);
+	}
+
+	/**
+	 * @return The string with the given id (decoded from the arena).
+	 */
+	public String getString( int _id ) {
+		if( _id < 0 || _id >= m_Size ) throw new IndexOutOfBoundsException();
+		int begin = m_Offsets[_id];
+		return new String(m_Arena, begin, m_Offsets[_id+1] - begin, LineTokenizer.UTF8);
+	}
+
+	private boolean equals( int _id, byte[] _bytes, int _begin, int _end ) {
+		int begin = m_Offsets[_id];
+		if( m_Offsets[_id+1] - begin != _end - _begin ) return false;
+		for( int i=_begin; i<_end; ++i, ++begin )
+			if( m_Arena[begin] != _bytes[i] ) return false;
+		return true;
+	}
+
+	/**
+	 * Writes the strings: size, arena size, offsets and arena.
+	 */
+	public void write( DataOutput _output ) throws IOException {
+		_output.writeInt(m_Size);
+		_output.writeInt(m_ArenaSize);
+		for( int id=0; id<=m_Size; ++id )
+			_output.writeInt(m_Offsets[id]);
+		_output.write(m_Arena, 0, m_ArenaSize);
+	}
+
+	/**
+	 * Reads a dictionary written by write(). The ids stay the same; the hash
+	 * table is rebuilt.
+	 */
+	public static StringDictionary read( ByteBuffer _buffer ) {
+		StringDictionary dictionary = new StringDictionary();
+		int size = _buffer.getInt();
+		int arenaSize = _buffer.getInt();
+		if( size < 0 || arenaSize < 0 ) throw new IllegalArgumentException("Corrupt dictionary");
+		dictionary.m_Offsets = new int[size + 1];
+		_buffer.asIntBuffer().get(dictionary.m_Offsets);
+		_buffer.position(_buffer.position() + 4 * (size + 1));
+		dictionary.m_Arena = new byte[arenaSize];
+		_buffer.get(dictionary.m_Arena);
+		if( dictionary.m_Offsets[0] != 0 || dictionary.m_Offsets[size] != arenaSize )
+			throw new IllegalArgumentException("Corrupt dictionary");
+		dictionary.m_ArenaSize = arenaSize;
+		dictionary.m_Size = size;
+		dictionary.m_Hashes = new int[Math.max(size, 16)];
+		for( int id=0; id<size; ++id )
+			dictionary.m_Hashes[id] = hash(dictionary.m_Arena, dictionary.m_Offsets[id], dictionary.m_Offsets[id+1]);
+		dictionary.m_Offsets = Arrays.copyOf(dictionary.m_Offsets, dictionary.m_Hashes.length + 1);
+		int tableSize = 32;
+		while( tableSize < 2 * size ) tableSize *= 2;
+		dictionary.rebuildTable(tableSize);
+		return dictionary;
+	}
+
+	private void rehash() {
+		rebuildTable(m_Table.length * 2);
+	}
+
+	private void rebuildTable( int _tableSize ) {
+		m_Table = new int[_tableSize];
+		int mask = m_Table.length - 1;
+		for( int id=0; id<m_Size; ++id ) {
+			int slot = m_Hashes[id] & mask;
+			while( m_Table[slot] != 0 ) slot = (slot + 1) & mask;
+			m_Table[slot] = id + 1;
+		}
+	}
+
+	private static int hash( byte[] _bytes, int _begin, int _end ) {
+		int h = 0;
+		for( int i=_begin; i<_end; ++i )
+			h = 31 * h + _bytes[i];
+		// Spread the bits (the table index uses the lowest ones)
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+}
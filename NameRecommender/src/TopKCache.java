@@ -0,0 +1,203 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Caches the recommendation lists of a Recommender per user and K.
+ *
+ * The cache is bounded by the number of stored item ids (plus a small
+ * overhead per list) and evicts the least recently used users first. A list
+ * for K also answers requests with a smaller K (prefix). When the factors of
+ * users change (e.g. after a fold-in) their lists are invalidated with
+ * setRecommender; a new model without a list of changed users clears
+ * everything.
+ *
+ * All methods can be called from many threads. The lists are computed
+ * outside of the lock. Returned arrays must not be changed.
+ */
+public class TopKCache {
+	// Counted size of a list in addition to its item ids
+	private static final int LIST_OVERHEAD = 16;
+
+	// Number of users which are scored at once by warmup
+	private static final int WARMUP_BATCH = 1024;
+
+	/**
+	 * The lists of one user (usually only one K).
+	 */
+	private static class Entry {
+		int[] k = new int[0];
+		int[][] lists = new int[0][];
+
+		/**
+		 * @return The list for the smallest cached K >= _k or null.
+		 */
+		int[] find( int _k ) {
+			int best = -1;
+			for( int i=0; i<k.length; ++i )
+				if( k[i] >= _k && (best == -1 || k[i] < k[best]) ) best = i;
+			return best == -1 ? null : lists[best];
+		}
+
+		long getSize() {
+			long size = 0;
+			for( int[] list : lists )
+				size += list.length + LIST_OVERHEAD;
+			return size;
+		}
+	}
+
+	private volatile Recommender m_Recommender;
+	private long m_Capacity;
+	private long m_Size;
+
+	// Users in access order (least recently used first)
+	private LinkedHashMap<Integer, Entry> m_Entries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+
+	private AtomicLong m_Hits = new AtomicLong();
+	private AtomicLong m_Misses = new AtomicLong();
+	private AtomicLong m_Evictions = new AtomicLong();
+
+	/**
+	 * @param _capacity Maximum number of cached item ids (a list of length
+	 * 	n counts as n + 16).
+	 */
+	TopKCache( Recommender _recommender, long _capacity ) {
+		m_Recommender = _recommender;
+		m_Capacity = _capacity;
+	}
+
+	public Recommender getRecommender() {
+		return m_Recommender;
+	}
+
+	/**
+	 * @return The top _k items of _user (same as
+	 * 	Recommender.getItemListForUser).
+	 */
+	public int[] get( int _user, int _k ) {
+		synchronized( this ) {
+			Entry entry = m_Entries.get(_user);
+			int[] list = entry == null ? null : entry.find(_k);
+			if( list != null ) {
+				m_Hits.incrementAndGet();
+				int length = Math.min(_k, list.length);
+				return length == list.length ? list : Arrays.copyOf(list, length);
+			}
+		}
+		m_Misses.incrementAndGet();
+		Recommender recommender = m_Recommender;
+		int[] list = recommender.getItemListForUser(_user, Math.min(_k, recommender.getNumItems()));
+		put( recommender, _user, _k, list );
+		return list;
+	}
+
+	/**
+	 * Computes and caches the top _k lists of many users at once (e.g.
+	 * directly after a model was loaded).
+	 */
+	public void warmup( int[] _users, int _k ) {
+		Recommender recommender = m_Recommender;
+		int k = Math.min(_k, recommender.getNumItems());
+		for( int begin=0; begin<_users.length; begin+=WARMUP_BATCH ) {
+			int[] batch = Arrays.copyOfRange(_users, begin, Math.min(begin+WARMUP_BATCH, _users.length));
+			int[][] lists = recommender.getItemListsForUsers(batch, k);
+			for( int u=0; u<batch.length; ++u )
+				put( recommender, batch[u], _k, lists[u] );
+		}
+	}
+
+	/**
+	 * Replaces the recommender.
+	 * @param _changedUsers The users whose factors or activity changed; their
+	 * 	lists are removed. null removes all lists (e.g. the item factors
+	 * 	changed).
+	 */
+	public synchronized void setRecommender( Recommender _recommender, int[] _changedUsers ) {
+		m_Recommender = _recommender;
+		if( _changedUsers == null )
+			clear();
+		else {
+			for( int user : _changedUsers )
+				invalidate(user);
+		}
+	}
+
+	/**
+	 * Removes all lists of one user.
+	 */
+	public synchronized void invalidate( int _user ) {
+		Entry entry = m_Entries.remove(_user);
+		if( entry != null )
+			m_Size -= entry.getSize();
+	}
+
+	public synchronized void clear() {
+		m_Entries.clear();
+		m_Size = 0;
+	}
+
+	public long getHits() {
+		return m_Hits.get();
+	}
+
+	public long getMisses() {
+		return m_Misses.get();
+	}
+
+	public long getEvictions() {
+		return m_Evictions.get();
+	}
+
+	public synchronized int getNumUsers() {
+		return m_Entries.size();
+	}
+
+	/**
+	 * @return The counted size of all lists (see constructor).
+	 */
+	public synchronized long getSize() {
+		return m_Size;
+	}
+
+	@Override
+	public String toString() {
+		return "cache hits " + getHits() + ", misses " + getMisses() + ", evictions " + getEvictions()
+				+ ", users " + getNumUsers() + ", size " + getSize();
+	}
+
+	/**
+	 * Stores a list which was computed by _recommender. Lists of a replaced
+	 * recommender are dropped.
+	 */
+	private synchronized void put( Recommender _recommender, int _user, int _k, int[] _list ) {
+		if( _recommender != m_Recommender ) return;
+		if( _list.length + LIST_OVERHEAD > m_Capacity ) return;
+		Entry entry = m_Entries.get(_user);
+		if( entry == null ) {
+			entry = new Entry();
+			m_Entries.put(_user, entry);
+		}
+		for( int i=0; i<entry.k.length; ++i )
+			if( entry.k[i] == _k ) return;	// Computed twice at the same time
+		int n = entry.k.length;
+		entry.k = Arrays.copyOf(entry.k, n+1);
+		entry.lists = Arrays.copyOf(entry.lists, n+1);
+		entry.k[n] = _k;
+		entry.lists[n] = _list;
+		m_Size += _list.length + LIST_OVERHEAD;
+
+		// Evict the least recently used users (never the current one)
+		Iterator<Map.Entry<Integer, Entry>> it = m_Entries.entrySet().iterator();
+		while( m_Size > m_Capacity && it.hasNext() ) {
+			Map.Entry<Integer, Entry> eldest = it.next();
+			if( eldest.getKey() == _user ) continue;
+			m_Size -= eldest.getValue().getSize();
+			it.remove();
+			m_Evictions.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * Keeps the k items with the largest values out of a stream of
+ * (item, value) pairs without storing the other ones.
+ *
+ * The items are kept in a bounded min-heap (primitive arrays) whose root is
+ * the worst of the current top k. Equal values are ordered by item index
+ * (smaller index first), so the result is the same as a stable descending
+ * sort of all items offered in increasing index order.
+ */
+public class TopKSelector {
+	private int[] m_Items;
+	private float[] m_Values;
+	private int m_Size;
+
+	TopKSelector( int _k ) {
+		m_Items = new int[_k];
+		m_Values = new float[_k];
+	}
+
+	public int size() {
+		return m_Size;
+	}
+
+	/**
+	 * Adds an item if it belongs to the current top k.
+	 */
+	public void offer( int _item, float _value ) {
+		if( m_Size < m_Items.length ) {
+			// Sift up
+			int i = m_Size++;
+			while( i > 0 ) {
+				int parent = (i-1) >>> 1;
+				if( !worse(_item, _value, m_Items[parent], m_Values[parent]) ) break;
+				m_Items[i] = m_Items[parent];
+				m_Values[i] = m_Values[parent];
+				i = parent;
+			}
+			m_Items[i] = _item;
+			m_Values[i] = _value;
+		} else if( m_Size > 0 && worse(m_Items[0], m_Values[0], _item, _value) ) {
+			siftDown( _item, _value, m_Size );
+		}
+	}
+
+	/**
+	 * @return The items sorted by decreasing value. The selector is empty
+	 * 	afterwards.
+	 */
+	public int[] getSortedItems() {
+		int[] result = new int[m_Size];
+		// Remove the worst item until the heap is empty
+		while( m_Size > 0 ) {
+			int last = --m_Size;
+			result[last] = m_Items[0];
+			if( last > 0 )
+				siftDown( m_Items[last], m_Values[last], last );
+		}
+		return result;
+	}
+
+	/**
+	 * Places an item at the root and moves it down in the heap [0,_size).
+	 */
+	private void siftDown( int _item, float _value, int _size ) {
+		int i = 0;
+		while( true ) {
+			int child = 2*i + 1;
+			if( child >= _size ) break;
+			if( child+1 < _size && worse(m_Items[child+1], m_Values[child+1], m_Items[child], m_Values[child]) )
+				++child;
+			if( !worse(m_Items[child], m_Values[child], _item, _value) ) break;
+			m_Items[i] = m_Items[child];
+			m_Values[i] = m_Values[child];
+			i = child;
+		}
+		m_Items[i] = _item;
+		m_Values[i] = _value;
+	}
+
+	/**
+	 * @return true if item a is ranked behind item b.
+	 */
+	private static boolean worse( int _itemA, float _valueA, int _itemB, float _valueB ) {
+		if( _valueA < _valueB ) return true;
+		if( _valueA > _valueB ) return false;
+		return _itemA > _itemB;
+	}
+}